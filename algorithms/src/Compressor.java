@@ -0,0 +1,200 @@
+import java.util.*;
+
+/**************************************************************/
+/* Class: CompressedPool */
+/* Purpose: In-RAM pool of compressed pages that sits between the */
+/* inactive list and disk, like zswap on Linux or the macOS compressor. */
+/* When the pool is full the least recently compressed page is written */
+/* to the backing store */
+/**************************************************************/
+class CompressedPool{
+    int poolPages; // RAM given to the pool, in base pages
+    double compressionRatio; // compressed pages stored per pool page
+    int capacity; // compressed pages the pool can hold
+    long compressCost; // cost of compressing one page, in microseconds
+    long decompressCost; // cost of decompressing one page, in microseconds
+    LinkedHashMap<Integer, Boolean> pages; // page number -> modified, oldest first
+
+    long stored;
+    long hits;
+    long writebacks; // modified pages written to the backing store
+    long dropped; // clean pages dropped, they can be read back from their file
+
+    public CompressedPool(int poolPages, double compressionRatio, long compressCost, long decompressCost){
+        this.poolPages = poolPages;
+        this.compressionRatio = compressionRatio;
+        this.capacity = (int) (poolPages * compressionRatio);
+        this.compressCost = compressCost;
+        this.decompressCost = decompressCost;
+        this.pages = new LinkedHashMap<>();
+    }
+
+    /**************************************************************/
+    /* Method: store */
+    /* Purpose: Compresses an evicted page into the pool, making room by */
+    /* evicting the oldest compressed page if the pool is full. A page that */
+    /* is already in the pool is replaced and becomes the newest again */
+    /* Parameters: */
+    /* int pageNumber: page being evicted from memory */
+    /* boolean modified: if the page needs to be written before it is dropped */
+    /* Returns: boolean: false if the pool has no room at all */
+    /**************************************************************/
+    public boolean store(int pageNumber, boolean modified){
+        if(capacity == 0){
+            return false;
+        }
+
+        // remove first so the new copy goes to the newest end, a dirty
+        // copy that was never written back still has to be written
+        Boolean previous = pages.remove(pageNumber);
+        if(previous != null){
+            modified |= previous;
+        }else if(pages.size() >= capacity){
+            Map.Entry<Integer, Boolean> oldest = pages.entrySet().iterator().next();
+            pages.remove(oldest.getKey());
+            if(oldest.getValue()){
+                writebacks++;
+            }else{
+                dropped++;
+            }
+        }
+
+        pages.put(pageNumber, modified);
+        stored++;
+        return true;
+    }
+
+    /**************************************************************/
+    /* Method: load */
+    /* Purpose: Decompresses a page back into memory if the pool has it */
+    /* Parameters: */
+    /* int pageNumber: page that faulted */
+    /* Returns: boolean: true if the fault was served from the pool */
+    /**************************************************************/
+    public boolean load(int pageNumber){
+        if(pages.remove(pageNumber) == null){
+            return false;
+        }
+        hits++;
+        return true;
+    }
+
+    public boolean contains(int pageNumber){
+        return pages.containsKey(pageNumber);
+    }
+
+    /**************************************************************/
+    /* Method: discard */
+    /* Purpose: Drops the compressed copies of a range of pages that were */
+    /* read back in some other way, like a whole huge page */
+    /* Parameters: */
+    /* int firstPage: first page of the range */
+    /* int count: number of pages in the range */
+    /* Returns: boolean: true if a dropped copy was modified */
+    /**************************************************************/
+    public boolean discard(int firstPage, int count){
+        boolean modified = false;
+        if(pages.isEmpty()){
+            return false;
+        }
+        for(int i = 0; i < count; i++){
+            Boolean copy = pages.remove(firstPage + i);
+            if(copy != null && copy){
+                modified = true;
+            }
+        }
+        return modified;
+    }
+
+    /**************************************************************/
+    /* Method: cost */
+    /* Purpose: Total time spent compressing and decompressing */
+    /* Parameters: */
+    /* Returns: long: microseconds */
+    /**************************************************************/
+    public long cost(){
+        return stored * compressCost + hits * decompressCost;
+    }
+
+    public void printStats(){
+        System.out.println("    Pool: " + pages.size() + "/" + capacity + " compressed pages in " + poolPages + " pages" +
+                " | Stored: " + stored +
+                " | Hits: " + hits +
+                " | Written back: " + writebacks +
+                " | Dropped: " + dropped +
+                " | Cost: " + cost() / 1000 + " ms");
+    }
+}
+
+public class Compressor{
+    static long DISK_READ_COST = 100; // microseconds for one page read from an SSD
+
+    public static void main(String[] args){
+        int memory = 16384; // 64 MB of 4 KB pages
+        int poolPages = 2048; // 8 MB of that for the pool
+        int[] trace = new int[300000];
+
+        // a loop slightly bigger than memory plus some random pages,
+        // so plain LRU misses almost every time
+        Random random = new Random(42);
+        for(int i = 0; i < trace.length; i++){
+            if(random.nextInt(10) < 8){
+                trace[i] = i % 19000;
+            }else{
+                trace[i] = 100000 + random.nextInt(4000);
+            }
+        }
+
+        System.out.println("Compressed Memory Comparison\n");
+        System.out.println("Replaying " + trace.length + " pages with " + memory + " pages of memory\n");
+
+        for(boolean compressed : new boolean[]{false, true}){
+            System.out.println("Linux, compressed pool " + (compressed ? "on" : "off"));
+            LinuxPageReplacement linux;
+            if(compressed){
+                linux = new LinuxPageReplacement(memory - poolPages);
+                linux.compressedPool = new CompressedPool(poolPages, 3.0, 5, 2);
+            }else{
+                linux = new LinuxPageReplacement(memory);
+            }
+            linux.verbose = false;
+            for(int page : trace){
+                linux.accessPage(page);
+            }
+            linux.printStats();
+            long cost = linux.hardFaults * DISK_READ_COST;
+            if(compressed){
+                linux.compressedPool.printStats();
+                cost += linux.compressedPool.cost();
+            }
+            System.out.println("    Fault time: " + cost / 1000 + " ms");
+            System.out.println();
+        }
+
+        for(boolean compressed : new boolean[]{false, true}){
+            System.out.println("MacOS, compressed pool " + (compressed ? "on" : "off"));
+            MacPageReplacement mac;
+            if(compressed){
+                mac = new MacPageReplacement(memory - poolPages);
+                mac.compressedPool = new CompressedPool(poolPages, 3.0, 5, 2);
+            }else{
+                mac = new MacPageReplacement(memory);
+            }
+            mac.verbose = false;
+            // a replay runs far faster than the age thresholds, so age every page
+            // out of the active list straight away and let the inactive list act as LRU
+            mac.activeThreshold = -1;
+            for(int page : trace){
+                mac.accessPage(page, false);
+            }
+            mac.printStats();
+            long cost = mac.hardFaults * DISK_READ_COST;
+            if(compressed){
+                mac.compressedPool.printStats();
+                cost += mac.compressedPool.cost();
+            }
+            System.out.println("    Fault time: " + cost / 1000 + " ms");
+            System.out.println();
+        }
+    }
+}
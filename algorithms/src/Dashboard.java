@@ -0,0 +1,313 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**************************************************************/
+/* Class: SimCounters */
+/* Purpose: Counters a model publishes for other threads to read. Only */
+/* the thread running the model writes them, and it only publishes every */
+/* SAMPLE_INTERVAL accesses with plain ordered writes, so nothing a reader */
+/* does can slow down or block the access thread */
+/**************************************************************/
+class SimCounters{
+    static int SAMPLE_INTERVAL = 1024; // accesses between snapshots, a power of two
+    // log2 buckets for accesses between faults. Bucket i holds gaps in
+    // [2^(i-1), 2^i), so bucket 0 (a gap of 0) is always 0 and the last
+    // bucket also holds every longer gap
+    static int BUCKETS = 32;
+
+    String[] totals; // counts that only go up, the dashboard reports their rate
+    String[] gauges; // current sizes
+    AtomicLongArray totalValues;
+    AtomicLongArray gaugeValues;
+    AtomicLongArray faultGaps;
+
+    // only touched by the access thread
+    private long[] gapCounts;
+    private long lastFault;
+
+    public SimCounters(String[] totals, String[] gauges){
+        this.totals = totals;
+        this.gauges = gauges;
+        this.totalValues = new AtomicLongArray(totals.length);
+        this.gaugeValues = new AtomicLongArray(gauges.length);
+        this.faultGaps = new AtomicLongArray(BUCKETS);
+        this.gapCounts = new long[BUCKETS];
+        this.lastFault = 0;
+    }
+
+    public static boolean sampleDue(long accesses){
+        return (accesses & (SAMPLE_INTERVAL - 1)) == 0;
+    }
+
+    /**************************************************************/
+    /* Method: recordFault */
+    /* Purpose: Adds the number of accesses since the last fault to the */
+    /* histogram, it is published with the next snapshot. Every model calls */
+    /* it for each fault that has to bring the page back, from disk or from */
+    /* the compressed pool, but not for pages that were still in memory */
+    /* Parameters: */
+    /* long accesses: access count when the fault happened */
+    /* Returns: void */
+    /**************************************************************/
+    public void recordFault(long accesses){
+        long gap = accesses - lastFault;
+        lastFault = accesses;
+        int bucket = Math.min(64 - Long.numberOfLeadingZeros(gap), BUCKETS - 1);
+        gapCounts[bucket]++;
+    }
+
+    public void setTotal(int index, long value){
+        totalValues.lazySet(index, value);
+    }
+
+    public void setGauge(int index, long value){
+        gaugeValues.lazySet(index, value);
+    }
+
+    public void publishHistogram(){
+        for(int i = 0; i < BUCKETS; i++){
+            faultGaps.lazySet(i, gapCounts[i]);
+        }
+    }
+}
+
+/**************************************************************/
+/* Class: DashboardServer */
+/* Purpose: Small HTTP server that serves the latest snapshot of every */
+/* watched model as JSON on /stats. A sampler thread reads the counters */
+/* on a timer and builds the JSON, requests only send the last one built */
+/**************************************************************/
+class DashboardServer{
+    InetAddress address;
+    int port;
+    long periodMillis;
+    Map<String, SimCounters> models;
+    Map<String, long[]> previousTotals;
+    long previousTime;
+    HttpServer server;
+    ScheduledExecutorService sampler;
+    volatile String latestJson;
+
+    // only reachable from this machine unless an address is given
+    public DashboardServer(int port, long periodMillis){
+        this(InetAddress.getLoopbackAddress(), port, periodMillis);
+    }
+
+    public DashboardServer(InetAddress address, int port, long periodMillis){
+        this.address = address;
+        this.port = port;
+        this.periodMillis = periodMillis;
+        this.models = new LinkedHashMap<>();
+        this.previousTotals = new HashMap<>();
+        this.latestJson = "{}";
+    }
+
+    /**************************************************************/
+    /* Method: watch */
+    /* Purpose: Adds a model to the dashboard, call before start */
+    /* Parameters: */
+    /* String name: name the model is reported under */
+    /* SimCounters counters: counters the model publishes */
+    /* Returns: void */
+    /**************************************************************/
+    public void watch(String name, SimCounters counters){
+        models.put(name, counters);
+        previousTotals.put(name, new long[counters.totals.length]);
+    }
+
+    public void start() throws IOException{
+        server = HttpServer.create(new InetSocketAddress(address, port), 0);
+        server.createContext("/stats", this::handle);
+        server.setExecutor(Executors.newSingleThreadExecutor(r -> daemon(r, "dashboard-http")));
+        server.start();
+
+        previousTime = System.nanoTime();
+        sampler = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "dashboard-sampler"));
+        sampler.scheduleAtFixedRate(this::sample, 0, periodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop(){
+        sampler.shutdownNow();
+        server.stop(0);
+    }
+
+    public int port(){
+        return server.getAddress().getPort();
+    }
+
+    public String url(){
+        String host = server.getAddress().getAddress().getHostAddress();
+        if(host.contains(":")){
+            host = "[" + host + "]"; // IPv6 literal
+        }
+        return "http://" + host + ":" + port() + "/stats";
+    }
+
+    /**************************************************************/
+    /* Method: sampleNow */
+    /* Purpose: Takes a sample straight away on the sampler thread and */
+    /* waits for it, so the next request sees counters published just now */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    public void sampleNow() throws InterruptedException, ExecutionException{
+        sampler.submit(this::sample).get();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException{
+        byte[] body = latestJson.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, body.length);
+        try(OutputStream out = exchange.getResponseBody()){
+            out.write(body);
+        }
+    }
+
+    /**************************************************************/
+    /* Method: sample */
+    /* Purpose: Reads every model's counters, works out rates since the */
+    /* last sample and stores the JSON for the next request */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    private void sample(){
+        long now = System.nanoTime();
+        double seconds = Math.max((now - previousTime) / 1e9, 1e-9);
+        previousTime = now;
+
+        StringBuilder json = new StringBuilder();
+        json.append("{\"timeMillis\":").append(System.currentTimeMillis());
+        json.append(",\"models\":{");
+        boolean firstModel = true;
+        for(Map.Entry<String, SimCounters> entry : models.entrySet()){
+            SimCounters c = entry.getValue();
+            long[] previous = previousTotals.get(entry.getKey());
+            if(!firstModel){
+                json.append(',');
+            }
+            firstModel = false;
+
+            appendString(json, entry.getKey());
+            json.append(":{\"totals\":{");
+            StringBuilder rates = new StringBuilder();
+            for(int i = 0; i < c.totals.length; i++){
+                long value = c.totalValues.get(i);
+                if(i > 0){
+                    json.append(',');
+                    rates.append(',');
+                }
+                appendString(json, c.totals[i]);
+                json.append(':').append(value);
+                appendString(rates, c.totals[i]);
+                rates.append(':')
+                        .append(String.format(Locale.ROOT, "%.1f", (value - previous[i]) / seconds));
+                previous[i] = value;
+            }
+            json.append("},\"ratesPerSecond\":{").append(rates).append("},\"gauges\":{");
+            for(int i = 0; i < c.gauges.length; i++){
+                if(i > 0){
+                    json.append(',');
+                }
+                appendString(json, c.gauges[i]);
+                json.append(':').append(c.gaugeValues.get(i));
+            }
+            // entry i counts fault gaps in [2^(i-1), 2^i) accesses
+            json.append("},\"accessesBetweenFaultsLog2\":[");
+            for(int i = 0; i < SimCounters.BUCKETS; i++){
+                if(i > 0){
+                    json.append(',');
+                }
+                json.append(c.faultGaps.get(i));
+            }
+            json.append("]}");
+        }
+        json.append("}}");
+        latestJson = json.toString();
+    }
+
+    // names come from callers, so quote them as JSON strings
+    private static void appendString(StringBuilder json, String value){
+        json.append('"');
+        for(int i = 0; i < value.length(); i++){
+            char ch = value.charAt(i);
+            if(ch == '"' || ch == '\\'){
+                json.append('\\').append(ch);
+            }else if(ch < 0x20){
+                json.append(String.format(Locale.ROOT, "\\u%04x", (int) ch));
+            }else{
+                json.append(ch);
+            }
+        }
+        json.append('"');
+    }
+
+    private static Thread daemon(Runnable r, String name){
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+}
+
+public class Dashboard{
+    public static void main(String[] args) throws Exception{
+        int port = 8080;
+        if(args.length > 0){
+            port = Integer.parseInt(args[0]);
+        }
+
+        LinuxPageReplacement linux = new LinuxPageReplacement(8192);
+        linux.verbose = false;
+        MacPageReplacement mac = new MacPageReplacement(8192);
+        mac.verbose = false;
+        WorkingSet ws = new WorkingSet(256, 1000);
+        ws.verbose = false;
+
+        DashboardServer dashboard = new DashboardServer(port, 1000);
+        dashboard.watch("linux", linux.enableCounters());
+        dashboard.watch("macos", mac.enableCounters());
+        dashboard.watch("windows", ws.enableCounters());
+        dashboard.start();
+        System.out.println("Live Simulation Dashboard\n");
+        System.out.println("Serving stats on " + dashboard.url() + "\n");
+
+        // a loop bigger than memory mixed with random pages, replayed over and over
+        Random random = new Random(42);
+        int[] trace = new int[100000];
+        for(int i = 0; i < trace.length; i++){
+            trace[i] = random.nextInt(10) < 7 ? i % 10000 : 50000 + random.nextInt(20000);
+        }
+
+        for(int round = 0; round < 3; round++){
+            for(int page : trace){
+                linux.accessPage(page);
+                mac.accessPage(page, false);
+                ws.accessPage(page % 400);
+            }
+            System.out.println("Finished round " + (round + 1));
+        }
+
+        // the models only publish every SAMPLE_INTERVAL accesses, so push the
+        // final totals out and sample them before the last read
+        linux.publishCounters();
+        mac.publishCounters();
+        ws.publishCounters();
+        dashboard.sampleNow();
+        URL url = new URL(dashboard.url());
+        try(InputStream in = url.openStream()){
+            System.out.println(new String(in.readAllBytes(), StandardCharsets.UTF_8));
+        }
+        dashboard.stop();
+    }
+}
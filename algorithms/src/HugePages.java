@@ -0,0 +1,68 @@
+import java.util.*;
+
+public class HugePages{
+    /**************************************************************/
+    /* Method: buildTrace */
+    /* Purpose: Makes an address trace with dense scans over a buffer, */
+    /* which huge pages help, and sparse random accesses over a large heap, */
+    /* which huge pages waste memory on */
+    /* Parameters: */
+    /* int length: number of addresses */
+    /* Returns: long[]: virtual addresses */
+    /**************************************************************/
+    private static long[] buildTrace(int length){
+        long bufferBase = 0x10000000L;
+        long bufferSize = 24L << 20;   // 24 MB scanned over and over
+        long heapBase = 0x100000000L;
+        long heapSize = 4L << 30;      // 4 GB touched at random
+
+        Random random = new Random(42);
+        long[] trace = new long[length];
+        long scan = 0;
+        for(int i = 0; i < length; i++){
+            if(random.nextInt(10) < 7){
+                trace[i] = bufferBase + scan;
+                scan = (scan + 64) % bufferSize; // one cache line at a time
+            }else{
+                trace[i] = heapBase + (random.nextLong() & (heapSize - 1));
+            }
+        }
+        return trace;
+    }
+
+    public static void main(String[] args){
+        int capacity = 16384; // 64 MB of 4 KB pages
+        long[] trace = buildTrace(500000);
+        System.out.println("Huge Page Comparison\n");
+        System.out.println("Replaying " + trace.length + " addresses with " + capacity + " base page frames\n");
+
+        for(boolean huge : new boolean[]{false, true}){
+            System.out.println("Linux, huge pages " + (huge ? "on" : "off"));
+            LinuxPageReplacement linux = new LinuxPageReplacement(capacity, huge);
+            linux.verbose = false;
+            long start = System.nanoTime();
+            for(long address : trace){
+                linux.accessAddress(address);
+            }
+            linux.printStats();
+            System.out.println("    Time: " + (System.nanoTime() - start) / 1000000 + " ms");
+            System.out.println();
+        }
+
+        for(boolean huge : new boolean[]{false, true}){
+            System.out.println("MacOS, huge pages " + (huge ? "on" : "off"));
+            MacPageReplacement mac = new MacPageReplacement(capacity, huge);
+            mac.verbose = false;
+            // a replay runs far faster than the age thresholds, so age every page
+            // out of the active list straight away and let the inactive list act as LRU
+            mac.activeThreshold = -1;
+            long start = System.nanoTime();
+            for(long address : trace){
+                mac.accessAddress(address, false);
+            }
+            mac.printStats();
+            System.out.println("    Time: " + (System.nanoTime() - start) / 1000000 + " ms");
+            System.out.println();
+        }
+    }
+}
@@ -1,16 +1,28 @@
 import java.util.*;
+import java.util.function.IntConsumer;
 
 class LinuxPage {
     int pageNumber;
     boolean referenced;
     boolean active;
+    int size; //number of base pages this page covers, more than 1 for a huge page
+    BitSet touched; //which base pages of a huge page have been used
+    boolean prefetched; //read ahead and not used yet
     //boolean dirty;
     //long lastAccessTime;
 
     public LinuxPage(int pageNumber) {
+        this(pageNumber, 1);
+    }
+
+    public LinuxPage(int pageNumber, int size) {
         this.pageNumber = pageNumber;
         this.referenced = false;
         this.active = false;
+        this.size = size;
+        if (size > 1) {
+            this.touched = new BitSet(size);
+        }
         //this.dirty = false;
         //this.lastAccessTime = System.nanoTime();
     }
@@ -23,21 +35,72 @@ class LinuxPage {
     /**************************************************************/
     @Override
     public String toString() {
-        return pageNumber + (referenced ? "*" : "");
+        return pageNumber + (size > 1 ? "H" : "") + (referenced ? "*" : "");
     }
 }
 
 class LinuxPageReplacement {
-    private int totalCapacity; //number of pages the two lists can hold
+    static int PAGE_SHIFT = 12; //4 KB base pages
+    static int HUGE_PAGE_SIZE = 512; //base pages in a 2 MB huge page
+
+    private int totalCapacity; //number of base pages the two lists can hold
     private ArrayList<LinuxPage> activeList;
     private ArrayList<LinuxPage> inactiveList;
     private Map<Integer, LinuxPage> pageMap;
+    private boolean hugePages;
+    private Map<Integer, LinuxPage> hugeMap; //huge pages by their 2 MB region
+    private Map<Integer, Integer> regionPages; //resident base pages in each 2 MB region
+    //Lists can hold huge pages so their sizes are counted in base pages
+    private int activePages;
+    private int inactivePages;
+    private int usedPages;
+    boolean verbose; //print every step, turn off when replaying long traces
+    long accesses;
+    long pageFaults;
+    long hardFaults; //faults read from disk, included in pageFaults
+    long compressedFaults; //faults served from the compressed pool, included in pageFaults
+    long hugeFaults;
+    long splits;
+    long reclaimScanned; //pages looked at by reclaim, the cost of reclaiming
+    long reclaimedPages; //base pages freed by reclaim
+    CompressedPool compressedPool; //evicted pages are compressed here before disk, null for none
+    Prefetcher prefetcher; //picks pages to read ahead on a hard fault, null for none
+    private int[] prefetchPages;
+    long prefetched;
+    long prefetchHits; //prefetched pages that were used
+    long prefetchWasted; //prefetched pages reclaimed without being used
+    SimCounters counters; //published for the dashboard, null when nobody is watching
+    IntConsumer evictionListener; //told about every base page reclaim takes out of memory, null for none
 
     public LinuxPageReplacement(int capacity) {
+        this(capacity, false);
+    }
+
+    public LinuxPageReplacement(int capacity, boolean hugePages) {
         this.totalCapacity = capacity;
         this.activeList = new ArrayList<>();
         this.inactiveList = new ArrayList<>();
         this.pageMap = new HashMap<>();
+        this.hugePages = hugePages;
+        this.hugeMap = new HashMap<>();
+        this.regionPages = new HashMap<>();
+        this.verbose = true;
+    }
+
+    /**************************************************************/
+    /* Method: accessAddress */
+    /* Purpose: Access the page that holds a virtual address. Page numbers */
+    /* are ints, so addresses from 8 TB up are rejected instead of wrapping */
+    /* Parameters: */
+    /* long address: virtual address to access */
+    /* Returns: void */
+    /**************************************************************/
+    public void accessAddress(long address) {
+        long pageNumber = address >>> PAGE_SHIFT;
+        if (pageNumber > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Address 0x" + Long.toHexString(address) + " is above the 8 TB the model can hold");
+        }
+        accessPage((int) pageNumber);
     }
 
     /**************************************************************/
@@ -48,11 +111,28 @@ class LinuxPageReplacement {
     /* Returns: void */
     /**************************************************************/
     public void accessPage(int pageNumber) {
-        if (pageMap.containsKey(pageNumber)) {
-            markAccessed(pageNumber);
+        accesses++;
+        LinuxPage page = pageMap.get(pageNumber);
+        if (page == null && hugePages) {
+            page = hugeMap.get(Math.floorDiv(pageNumber, HUGE_PAGE_SIZE));
+        }
+
+        if (page != null && page.prefetched) {
+            //The first use of a prefetched page stands in for the fault that would
+            //have loaded it, so like a faulted page it is not marked referenced.
+            //The stream caught up with what was read ahead, read the next window
+            page.prefetched = false;
+            prefetchHits++;
+            readAhead(prefetcher.onPrefetchHit(pageNumber, prefetchBuffer()), 0);
+        } else if (page != null) {
+            markAccessed(page, pageNumber);
         } else {
             handlePageFault(pageNumber);
         }
+
+        if (counters != null && SimCounters.sampleDue(accesses)) {
+            publishCounters();
+        }
     }
 
     /**************************************************************/
@@ -61,26 +141,37 @@ class LinuxPageReplacement {
     /* If page is in the inactive list and has been referenced, move to active list */
     /* If page is active set referenced to true*/
     /* Parameters: */
+    /* LinuxPage page: page that holds pageNumber */
     /* int pageNumber: page number we want to access */
     /* Returns: void */
     /**************************************************************/
-    private void markAccessed(int pageNumber) {
-        LinuxPage page = pageMap.get(pageNumber);
+    private void markAccessed(LinuxPage page, int pageNumber) {
         //page.lastAccessTime = System.nanoTime();
+        if (page.size > 1) {
+            page.touched.set(pageNumber - page.pageNumber);
+        }
 
         if (!page.active && !page.referenced) {
             page.referenced = true;
-            System.out.println("    " + pageNumber + " set reference: true ");
+            if (verbose) {
+                log("    " + pageNumber + " set reference: true ");
+            }
         } else if (!page.active && page.referenced) {
             //activatePage(page);
             inactiveList.remove(page);
             activeList.add(page);
+            inactivePages -= page.size;
+            activePages += page.size;
             page.active = true;
             page.referenced = false;
-            System.out.println("    Moving page " + pageNumber + " to active list");
+            if (verbose) {
+                log("    Moving page " + pageNumber + " to active list");
+            }
         } else if (page.active) {
             page.referenced = true;
-            System.out.println("    Page " + pageNumber + " hit in active list");
+            if (verbose) {
+                log("    Page " + pageNumber + " hit in active list");
+            }
         }
     }
     
@@ -105,30 +196,139 @@ class LinuxPageReplacement {
     /**************************************************************/
     /* Method: handlePageFault */
     /* Purpose: Handles what to do with the page when a page that is not in the */
-    /* map is trying to get accessed */
+    /* map is trying to get accessed. If huge pages are on and none of the */
+    /* 2 MB region is in memory the whole region is loaded as one huge page */
     /* Parameters: */
     /* int pageNumber: page number we are trying to add */
     /* Returns: void */
     /**************************************************************/
     private void handlePageFault(int pageNumber) {
-        LinuxPage newPage = new LinuxPage(pageNumber);
+        pageFaults++;
+        if (counters != null) {
+            counters.recordFault(accesses);
+        }
+        int region = Math.floorDiv(pageNumber, HUGE_PAGE_SIZE);
+        int size = 1;
+        boolean fromPool = false;
+
+        //A page in the compressed pool only has to be decompressed, not read from disk
+        if (compressedPool != null && compressedPool.load(pageNumber)) {
+            compressedFaults++;
+            fromPool = true;
+            if (verbose) {
+                log("    Decompressing page " + pageNumber);
+            }
+        } else {
+            hardFaults++;
+            if (hugePages && totalCapacity >= HUGE_PAGE_SIZE && !regionPages.containsKey(region)) {
+                size = HUGE_PAGE_SIZE;
+            }
+        }
+
+        if (usedPages + size > totalCapacity && !inactiveList.isEmpty()) {
+            reclaimPages(Math.min(size, usedPages + size - totalCapacity), true);
+        }
+
+        //Could not free a whole huge page so fall back to a base page
+        if (size > 1 && usedPages + size > totalCapacity) {
+            size = 1;
+            if (usedPages + size > totalCapacity && !inactiveList.isEmpty()) {
+                reclaimPages(1, true);
+            }
+        }
+
+        LinuxPage newPage;
+        if (size > 1) {
+            newPage = new LinuxPage(region * HUGE_PAGE_SIZE, size);
+            newPage.touched.set(pageNumber - newPage.pageNumber);
+            hugeMap.put(region, newPage);
+            hugeFaults++;
+            //The huge page replaces any compressed copies from the region
+            if (compressedPool != null) {
+                compressedPool.discard(newPage.pageNumber, size);
+            }
+        } else {
+            newPage = new LinuxPage(pageNumber);
+            pageMap.put(pageNumber, newPage);
+            countRegionPages(pageNumber, 1);
+        }
 
-        if (pageMap.size() >= totalCapacity && !inactiveList.isEmpty()) {
-            reclaimPages(1);
+        //Read ahead once the page is in the maps, so a huge page keeps the
+        //prefetcher out of its region, but before it is on the inactive list
+        //so reclaiming room for the prefetched pages can not take it
+        if (prefetcher != null && !fromPool) {
+            readAhead(prefetcher.onFault(pageNumber, prefetchBuffer()), size);
         }
 
-        //Since inactive list is a FIFO buffer the new page will be added to the beginning
-        // of the buffer
+        //Since inactive list is a FIFO buffer the new page is added to the end,
+        //reclaim takes pages from the front
         inactiveList.add(newPage);
+        inactivePages += size;
+        usedPages += size;
         newPage.active = false;
-        pageMap.put(pageNumber, newPage);
-        System.out.println("    Page fault: Moving " + pageNumber + " to inactive list");
+        if (verbose) {
+            log("    Page fault: Moving " + newPage + " to inactive list");
+        }
 
         // removes pages that have been inactive for too long
         // pages to the inactive list
         refillInactive();
     }
 
+    /**************************************************************/
+    /* Method: readAhead */
+    /* Purpose: Loads the pages picked by the prefetcher onto the inactive */
+    /* list, reclaiming room for them first if memory is full */
+    /* Parameters: */
+    /* int count: number of pages in prefetchPages */
+    /* int reserved: pages to leave free for the page that faulted */
+    /* Returns: void */
+    /**************************************************************/
+    private void readAhead(int count, int reserved) {
+        //Skip pages that are already in memory or in the compressed pool
+        int wanted = 0;
+        for (int i = 0; i < count; i++) {
+            int pageNumber = prefetchPages[i];
+            boolean resident = pageMap.containsKey(pageNumber) ||
+                    (hugePages && hugeMap.containsKey(Math.floorDiv(pageNumber, HUGE_PAGE_SIZE)));
+            if (pageNumber >= 0 && !resident && (compressedPool == null || !compressedPool.contains(pageNumber))) {
+                prefetchPages[wanted++] = pageNumber;
+            }
+        }
+        if (wanted == 0) {
+            return;
+        }
+
+        if (usedPages + reserved + wanted > totalCapacity && !inactiveList.isEmpty()) {
+            //Speculative pages only replace inactive pages, refilling from the
+            //active list would push out pages that are in use for a guess
+            reclaimPages(usedPages + reserved + wanted - totalCapacity, false);
+        }
+
+        int loaded = 0;
+        for (int i = 0; i < wanted && usedPages + reserved < totalCapacity; i++) {
+            LinuxPage page = new LinuxPage(prefetchPages[i]);
+            page.prefetched = true;
+            inactiveList.add(page);
+            inactivePages++;
+            usedPages++;
+            pageMap.put(page.pageNumber, page);
+            countRegionPages(page.pageNumber, 1);
+            loaded++;
+        }
+        prefetched += loaded;
+        if (verbose) {
+            log("    Read ahead " + loaded + " pages starting at " + prefetchPages[0]);
+        }
+    }
+
+    private int[] prefetchBuffer() {
+        if (prefetchPages == null || prefetchPages.length < prefetcher.maxPages()) {
+            prefetchPages = new int[prefetcher.maxPages()];
+        }
+        return prefetchPages;
+    }
+
     /**************************************************************/
     /* Method: refillInactive */
     /* Purpose: If there are too many pages in the active list then this will */
@@ -138,21 +338,22 @@ class LinuxPageReplacement {
     /**************************************************************/
     private void refillInactive() {
         //Calculates the number of pages needed to move
-        int totalPages = activeList.size() + inactiveList.size();
+        int totalPages = activePages + inactivePages;
         int targetInactiveSize = totalPages / 3;
         int pagesToMove = 0;
 
-        if(inactiveList.size() < targetInactiveSize){
-            pagesToMove = targetInactiveSize - inactiveList.size();
+        if(inactivePages < targetInactiveSize){
+            pagesToMove = targetInactiveSize - inactivePages;
         }
 
-        if (pagesToMove > 0 && !activeList.isEmpty()) {
-            System.out.println("    Refilling inactive list");
+        if (verbose && pagesToMove > 0 && !activeList.isEmpty()) {
+            log("    Refilling inactive list");
         }
 
         //While the active list is not empty keep removing pages until the number of pages
         // to move is zero
-        for (int i = 0; i < pagesToMove && !activeList.isEmpty(); i++) {
+        int moved = 0;
+        while (moved < pagesToMove && !activeList.isEmpty()) {
             LinuxPage page = activeList.remove(activeList.size() - 1);
 
             //remove the last page in active list since its the least active page
@@ -161,13 +362,15 @@ class LinuxPageReplacement {
             if (page.referenced) {
                 page.referenced = false;
                 activeList.add(page);
-                i--;
             } else {
                 // If the page has not been referenced recently then set its boolean values and add it to the
-                //beginning of the inactive list
+                //end of the inactive list
                 page.active = false;
                 //page.referenced = false;
                 inactiveList.add(page);
+                activePages -= page.size;
+                inactivePages += page.size;
+                moved += page.size;
             }
         }
     }
@@ -178,10 +381,14 @@ class LinuxPageReplacement {
     /* pages from the inactive list  */
     /* Parameters: */
     /* int numPages: number of pages to remove */
+    /* boolean refill: move pages from the active list if the inactive */
+    /* list does not have enough to give */
     /* Returns: void */
     /**************************************************************/
-    private void reclaimPages(int numPages) {
-        System.out.println("    Reclaiming page(s) from inactive list");
+    private void reclaimPages(int numPages, boolean refill) {
+        if (verbose) {
+            log("    Reclaiming page(s) from inactive list");
+        }
         int remaining = numPages;
         while(remaining > 0 && (!inactiveList.isEmpty() || !activeList.isEmpty())) {
             int freedPages = 0;
@@ -190,16 +397,21 @@ class LinuxPageReplacement {
 
             List<LinuxPage> removePage = new ArrayList<>();
             List<LinuxPage> secondChance = new ArrayList<>();
+            List<LinuxPage> splitPage = new ArrayList<>();
 
-            //Start scanning from the tail of the inactive list
+            //Start scanning from the front of the inactive list where the oldest pages are
             //Do not stop until we have freed enough pages or reached the scan limit or have run out of pages to scan
-             for(int i = inactiveList.size() - 1; i >= 0 && freedPages < remaining && scanned < scanLimit; i--) {
+            for (int i = 0; i < inactiveList.size() && freedPages < remaining && scanned < scanLimit; i++) {
                 LinuxPage page = inactiveList.get(i);
                 scanned++;
 
                 //If the page has not been referenced since being put in the inactive list
                 //then add to the to remove list
-                if (!page.referenced) {
+                if (!page.referenced && page.size > 1) {
+                    //Huge pages are split first, only the base pages that were used stay in memory
+                    splitPage.add(page);
+                    freedPages += page.size - page.touched.cardinality();
+                } else if (!page.referenced) {
                     removePage.add(page);
                     freedPages++;
                 } else {
@@ -208,39 +420,208 @@ class LinuxPageReplacement {
                     secondChance.add(page);
                 }
             }
+            reclaimScanned += scanned;
             removePage(removePage);
             secondChance(secondChance);
+            splitPages(splitPage);
 
             remaining -= freedPages;
 
+            if (!refill) {
+                break;
+            }
+
             if (remaining > 0 && !activeList.isEmpty()) {
                 //if(activeList.isEmpty()) break;
                 refillInactive();
             }
+
+            //Nothing could be moved to the inactive list so there is nothing left to reclaim
+            if (remaining > 0 && inactiveList.isEmpty()) {
+                break;
+            }
         }
     }
 
     private void removePage(List<LinuxPage> removePage){
         for (LinuxPage page : removePage) {
             inactiveList.remove(page);
-            System.out.println("    Removing page " + page);
+            if (verbose) {
+                log("    Removing page " + page);
+            }
             pageMap.remove(page.pageNumber);
+            if (evictionListener != null) {
+                evictionListener.accept(page.pageNumber);
+            }
+            if (page.prefetched) {
+                prefetchWasted++;
+            }
+            if (compressedPool != null) {
+                compressedPool.store(page.pageNumber, false);
+            }
+            countRegionPages(page.pageNumber, -1);
+            inactivePages--;
+            usedPages--;
+            reclaimedPages++;
+        }
+    }
+
+    /**************************************************************/
+    /* Method: splitPages */
+    /* Purpose: Splits huge pages into base pages. Base pages that were */
+    /* used stay on the inactive list where the huge page was, the rest */
+    /* are freed straight away */
+    /* Parameters: */
+    /* List<LinuxPage> splitPage: huge pages to split */
+    /* Returns: void */
+    /**************************************************************/
+    private void splitPages(List<LinuxPage> splitPage){
+        for (LinuxPage page : splitPage) {
+            int index = inactiveList.indexOf(page);
+            inactiveList.remove(index);
+            hugeMap.remove(Math.floorDiv(page.pageNumber, HUGE_PAGE_SIZE));
+
+            List<LinuxPage> basePages = new ArrayList<>();
+            for (int i = page.touched.nextSetBit(0); i >= 0; i = page.touched.nextSetBit(i + 1)) {
+                LinuxPage basePage = new LinuxPage(page.pageNumber + i);
+                basePages.add(basePage);
+                pageMap.put(basePage.pageNumber, basePage);
+                countRegionPages(basePage.pageNumber, 1);
+            }
+            inactiveList.addAll(index, basePages);
+
+            if (evictionListener != null) {
+                for (int i = page.touched.nextClearBit(0); i < page.size; i = page.touched.nextClearBit(i + 1)) {
+                    evictionListener.accept(page.pageNumber + i);
+                }
+            }
+
+            int freed = page.size - basePages.size();
+            inactivePages -= freed;
+            usedPages -= freed;
+            reclaimedPages += freed;
+            splits++;
+            if (verbose) {
+                log("    Splitting huge page " + page + ", kept " + basePages.size() + " base pages");
+            }
+        }
+    }
+
+    //Only needed to know when a 2 MB region is empty enough for a huge page
+    private void countRegionPages(int pageNumber, int delta){
+        if (!hugePages) {
+            return;
+        }
+        int region = Math.floorDiv(pageNumber, HUGE_PAGE_SIZE);
+        int count = regionPages.getOrDefault(region, 0) + delta;
+        if (count > 0) {
+            regionPages.put(region, count);
+        } else {
+            regionPages.remove(region);
         }
     }
 
     private void secondChance(List<LinuxPage> secondChance){
         for (LinuxPage page : secondChance) {
             inactiveList.remove(page);
-            System.out.println("    Giving page " + page + " a second chance");
+            if (verbose) {
+                log("    Giving page " + page + " a second chance");
+            }
             activeList.add(page);
+            inactivePages -= page.size;
+            activePages += page.size;
             page.active = true;
         }
         }
 
+    //Callers check verbose first so quiet replays do not build the message
+    private void log(String message) {
+        System.out.println(message);
+    }
+
+    /**************************************************************/
+    /* Method: enableCounters */
+    /* Purpose: Starts publishing counters for the dashboard */
+    /* Parameters: */
+    /* Returns: SimCounters */
+    /**************************************************************/
+    public SimCounters enableCounters() {
+        counters = new SimCounters(
+                new String[]{"accesses", "faults", "hardFaults", "compressedFaults", "hugeFaults", "splits",
+                        "reclaimScanned", "reclaimedPages", "prefetched", "prefetchHits", "prefetchWasted"},
+                new String[]{"activePages", "inactivePages", "usedPages", "capacity"});
+        publishCounters();
+        return counters;
+    }
+
+    /**************************************************************/
+    /* Method: publishCounters */
+    /* Purpose: Publishes the counters now instead of waiting for the next */
+    /* sample, call it after the last access so readers see the final totals */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    public void publishCounters() {
+        if (counters == null) {
+            return;
+        }
+        counters.setTotal(0, accesses);
+        counters.setTotal(1, pageFaults);
+        counters.setTotal(2, hardFaults);
+        counters.setTotal(3, compressedFaults);
+        counters.setTotal(4, hugeFaults);
+        counters.setTotal(5, splits);
+        counters.setTotal(6, reclaimScanned);
+        counters.setTotal(7, reclaimedPages);
+        counters.setTotal(8, prefetched);
+        counters.setTotal(9, prefetchHits);
+        counters.setTotal(10, prefetchWasted);
+        counters.setGauge(0, activePages);
+        counters.setGauge(1, inactivePages);
+        counters.setGauge(2, usedPages);
+        counters.setGauge(3, totalCapacity);
+        counters.publishHistogram();
+    }
+
+    public int usedPages() {
+        return usedPages;
+    }
+
+    /**************************************************************/
+    /* Method: reclaim */
+    /* Purpose: Frees pages ahead of time so later faults find free */
+    /* frames, like kswapd working up to its high watermark */
+    /* Parameters: */
+    /* int numPages: number of pages to free */
+    /* Returns: void */
+    /**************************************************************/
+    public void reclaim(int numPages) {
+        if (numPages > 0) {
+            reclaimPages(numPages, true);
+        }
+    }
+
+    public boolean isResident(int pageNumber) {
+        return pageMap.containsKey(pageNumber) ||
+                (hugePages && hugeMap.containsKey(Math.floorDiv(pageNumber, HUGE_PAGE_SIZE)));
+    }
+
     public void display() {
         System.out.println("    Active: " + activeList +
                 " | Inactive: " + inactiveList);
     }
+
+    public void printStats() {
+        System.out.println("    Accesses: " + accesses +
+                " | Faults: " + pageFaults +
+                " | Hard faults: " + hardFaults +
+                " | Compressed faults: " + compressedFaults +
+                " | Huge faults: " + hugeFaults +
+                " | Splits: " + splits +
+                " | Reclaim scanned: " + reclaimScanned +
+                " | Reclaimed pages: " + reclaimedPages +
+                " | Used: " + usedPages + "/" + totalCapacity);
+    }
 }
 
 // Main demonstration
@@ -4,11 +4,22 @@ class MacPage{
     int pageNumber;
     boolean modified;
     long lastAccessTime;
+    int size; // number of base pages, more than 1 for a huge page
+    BitSet touched; // which base pages of a huge page have been used
+    boolean prefetched; // read ahead and not used yet
 
     public MacPage(int pageNumber){
+        this(pageNumber, 1);
+    }
+
+    public MacPage(int pageNumber, int size){
         this.pageNumber = pageNumber;
         this.modified = false;
         this.lastAccessTime = System.currentTimeMillis();
+        this.size = size;
+        if(size > 1){
+            this.touched = new BitSet(size);
+        }
     }
 
     /**************************************************************/
@@ -32,14 +43,21 @@ class MacPage{
     /* Returns: String */
     /**************************************************************/
     public String toString(){
+        String name = "" + pageNumber;
+        if(size > 1){
+            name += "H"; // H = huge page
+        }
         if(modified){
-            return pageNumber + "m"; // m = modified
+            return name + "m"; // m = modified
         }
-        return "" + pageNumber;
+        return name;
     }
 }
 
 class MacPageReplacement{
+    static int PAGE_SHIFT = 12; // 4 KB base pages
+    static int HUGE_PAGE_SIZE = 512; // base pages in a 2 MB huge page
+
     int maxPhysicalPages;
     int minFree;
     int targetFree;
@@ -49,12 +67,36 @@ class MacPageReplacement{
     int freePages;
 
     Map<Integer, MacPage> pageTable; // which virtual page is in RAM
+    boolean hugePages;
+    Map<Integer, MacPage> hugeTable; // huge pages by their 2 MB region
+    Map<Integer, Integer> regionPages; // resident base pages in each 2 MB region
+    boolean verbose; // print every step, turn off when replaying long traces
 
     // age thresholds
     long activeThreshold = 400;
     long inactiveThreshold = 800;
 
+    long accesses;
+    long softFaults;
+    long hardFaults;
+    long compressedFaults; // faults served from the compressed pool instead of disk
+    long hugeFaults;
+    long splits;
+    long pagesScanned; // pages looked at by the page-out daemon
+    long pagesFreed; // base pages freed by the page-out daemon
+    CompressedPool compressedPool; // paged out pages are compressed here first, null for none
+    Prefetcher prefetcher; // picks pages to read ahead on a hard fault, null for none
+    int[] prefetchPages;
+    long prefetched;
+    long prefetchHits; // prefetched pages that were used
+    long prefetchWasted; // prefetched pages paged out without being used
+    SimCounters counters; // published for the dashboard, null when nobody is watching
+
     public MacPageReplacement(int maxPhysicalPages){
+        this(maxPhysicalPages, false);
+    }
+
+    public MacPageReplacement(int maxPhysicalPages, boolean hugePages){
         this.maxPhysicalPages = maxPhysicalPages;
 
         this.minFree = maxPhysicalPages / 4;
@@ -71,6 +113,27 @@ class MacPageReplacement{
         this.inactive = new ArrayList<>();
         this.freePages = maxPhysicalPages;
         this.pageTable = new HashMap<>();
+        this.hugePages = hugePages;
+        this.hugeTable = new HashMap<>();
+        this.regionPages = new HashMap<>();
+        this.verbose = true;
+    }
+
+    /**************************************************************/
+    /* Method: accessAddress */
+    /* Purpose: Access the page that holds a virtual address. Page numbers */
+    /* are ints, so addresses from 8 TB up are rejected instead of wrapping */
+    /* Parameters: */
+    /* long address: virtual address we are trying to access */
+    /* boolean write: if we are writing to the page */
+    /* Returns: void */
+    /**************************************************************/
+    public void accessAddress(long address, boolean write){
+        long pageNumber = address >>> PAGE_SHIFT;
+        if(pageNumber > Integer.MAX_VALUE){
+            throw new IllegalArgumentException("Address 0x" + Long.toHexString(address) + " is above the 8 TB the model can hold");
+        }
+        accessPage((int) pageNumber, write);
     }
 
     /**************************************************************/
@@ -83,13 +146,20 @@ class MacPageReplacement{
     /* Returns: Boolean: did we find it? */
     /**************************************************************/
     public void accessPage(int pageNumber, boolean write){
-        System.out.print("Access page " + pageNumber);
-        if(write){
-            System.out.print(" (write)");
+        accesses++;
+        if(verbose){
+            System.out.print("Access page " + pageNumber);
+            if(write){
+                System.out.print(" (write)");
+            }
+            System.out.println();
         }
-        System.out.println();
 
+        int region = Math.floorDiv(pageNumber, HUGE_PAGE_SIZE);
         MacPage page = pageTable.get(pageNumber);
+        if(page == null && hugePages){
+            page = hugeTable.get(region);
+        }
 
         // If the page is not null then we check two conditions
         // 1. If its in the inactive page then a soft fault occurs and the pages is
@@ -101,31 +171,109 @@ class MacPageReplacement{
                 // soft fault: was in RAM but on active list
                 inactive.remove(page);
                 active.add(page);
-                System.out.println("    Soft fault: page " + pageNumber + " moved to active list");
+                softFaults++;
+                if(verbose){
+                    log("    Soft fault: page " + pageNumber + " moved to active list");
+                }
             }else{
-                System.out.println("    Hit: page " + pageNumber + " already active");
+                if(verbose){
+                    log("    Hit: page " + pageNumber + " already active");
+                }
             }
             page.touch(write);
+            if(page.size > 1){
+                page.touched.set(pageNumber - page.pageNumber);
+            }
+            if(page.prefetched){
+                // the stream caught up with what was read ahead, read the next window
+                page.prefetched = false;
+                prefetchHits++;
+                readAhead(prefetcher.onPrefetchHit(pageNumber, prefetchBuffer()));
+            }
         }else{
-            // hard fault: page not in memory at all
-            System.out.println("    Hard fault: page " + pageNumber + " not in memory");
+            int size = 1;
+            // only take the page out of the pool once a frame is found,
+            // otherwise a failed allocation would lose it
+            boolean fromPool = compressedPool != null && compressedPool.contains(pageNumber);
+            if(!fromPool){
+                // hard fault: page not in memory at all
+                recordHardFault(pageNumber);
+
+                // If none of the 2 MB region is in memory load the whole region as a huge page
+                if(hugePages && maxPhysicalPages >= HUGE_PAGE_SIZE && !regionPages.containsKey(region)){
+                    size = HUGE_PAGE_SIZE;
+                }
+            }
 
-            if(freePages == 0){
+            if(freePages < size){
                 //If there is no free pages then reclaim memory
-                pageOutDaemon();
+                pageOutDaemon(size);
+            }
+
+            // Not enough room for a huge page, fall back to a base page
+            if(size > 1 && freePages < size){
+                size = 1;
+                if(freePages == 0){
+                    pageOutDaemon(1);
+                }
+            }
+
+            if(freePages >= size && fromPool){
+                if(compressedPool.load(pageNumber)){
+                    // compressed fault: page only has to be decompressed
+                    compressedFaults++;
+                    if(counters != null){
+                        counters.recordFault(accesses);
+                    }
+                    if(verbose){
+                        log("    Compressed fault: decompressing page " + pageNumber);
+                    }
+                }else{
+                    // making room pushed it out of the pool to the backing store
+                    fromPool = false;
+                    recordHardFault(pageNumber);
+                }
             }
 
             //If there is room then set the modified boolean value and add it to
             //the active list
-            if(freePages > 0){
-                freePages--;
-                MacPage newPage = new MacPage(pageNumber);
+            if(freePages >= size){
+                freePages -= size;
+                MacPage newPage;
+                if(size > 1){
+                    newPage = new MacPage(region * HUGE_PAGE_SIZE, size);
+                    newPage.touched.set(pageNumber - newPage.pageNumber);
+                    hugeTable.put(region, newPage);
+                    hugeFaults++;
+                    // the huge page replaces any compressed copies from the region
+                    if(compressedPool != null){
+                        newPage.modified = compressedPool.discard(newPage.pageNumber, size);
+                    }
+                }else{
+                    newPage = new MacPage(pageNumber);
+                    pageTable.put(pageNumber, newPage);
+                    countRegionPages(pageNumber, 1);
+                }
                 newPage.touch(write);
                 active.add(newPage);
-                pageTable.put(pageNumber, newPage);
-                System.out.println("    Load page " + pageNumber + " into active list");
+                if(verbose){
+                    log("    Load page " + newPage.pageNumber + (size > 1 ? " (huge)" : "") + " into active list");
+                }
+
+                if(prefetcher != null && !fromPool){
+                    readAhead(prefetcher.onFault(pageNumber, prefetchBuffer()));
+                }
             }else{
-                System.out.println("    No free pages available!");
+                if(fromPool){
+                    // the page stays in the pool but the reference still faulted
+                    compressedFaults++;
+                    if(counters != null){
+                        counters.recordFault(accesses);
+                    }
+                }
+                if(verbose){
+                    log("    No free pages available!");
+                }
             }
         }
 
@@ -133,6 +281,20 @@ class MacPageReplacement{
         //Since we set maxPages to 5 this isnt necessary since its a small number
         moveOldActiveToInactive();
         //balanceQueues();
+
+        if(counters != null && SimCounters.sampleDue(accesses)){
+            publishCounters();
+        }
+    }
+
+    private void recordHardFault(int pageNumber){
+        hardFaults++;
+        if(counters != null){
+            counters.recordFault(accesses);
+        }
+        if(verbose){
+            log("    Hard fault: page " + pageNumber + " not in memory");
+        }
     }
 
     /**************************************************************/
@@ -178,47 +340,223 @@ class MacPageReplacement{
         for(MacPage p : toMove){
             active.remove(p);
             inactive.add(p);
-            System.out.println("    Moved page " + p.pageNumber + " from active to inactive");
+            if(verbose){
+                log("    Moved page " + p.pageNumber + " from active to inactive");
+            }
         }
     }
 
     /**************************************************************/
-    /* Method: accessPage */
+    /* Method: readAhead */
+    /* Purpose: Loads the pages picked by the prefetcher onto the inactive */
+    /* list. Read ahead only uses free pages, it never wakes the daemon */
+    /* Parameters: */
+    /* int count: number of pages in prefetchPages */
+    /* Returns: void */
+    /**************************************************************/
+    private void readAhead(int count){
+        int loaded = 0;
+        for(int i = 0; i < count && freePages > 0; i++){
+            int pageNumber = prefetchPages[i];
+            if(pageNumber < 0 || pageTable.containsKey(pageNumber)){
+                continue;
+            }
+            if(hugePages && hugeTable.containsKey(Math.floorDiv(pageNumber, HUGE_PAGE_SIZE))){
+                continue;
+            }
+            if(compressedPool != null && compressedPool.contains(pageNumber)){
+                continue;
+            }
+
+            MacPage p = new MacPage(pageNumber);
+            p.prefetched = true;
+            inactive.add(p);
+            pageTable.put(pageNumber, p);
+            countRegionPages(pageNumber, 1);
+            freePages--;
+            loaded++;
+        }
+        if(loaded > 0){
+            prefetched += loaded;
+            if(verbose){
+                log("    Read ahead " + loaded + " pages");
+            }
+        }
+    }
+
+    private int[] prefetchBuffer(){
+        if(prefetchPages == null || prefetchPages.length < prefetcher.maxPages()){
+            prefetchPages = new int[prefetcher.maxPages()];
+        }
+        return prefetchPages;
+    }
+
+    /**************************************************************/
+    /* Method: pageOutDaemon */
     /* Purpose: If there is not enough free pages then remove pages from the inactive list */
+    /* Huge pages are split, base pages that were used stay on the inactive list */
     /* Parameters: */
+    /* int needed: free pages the caller needs */
     /* Returns: void */
     /**************************************************************/
-    private void pageOutDaemon(){
+    private void pageOutDaemon(int needed){
         long now = System.currentTimeMillis();
-        System.out.println("    Running Page-out Daemon");
+        if(verbose){
+            log("    Running Page-out Daemon");
+        }
         boolean urgent = false;
-        if(freePages == 0){
+        if(freePages < needed){
             urgent = true;
         }
+        int goal = Math.max(targetFree, needed);
 
-        List<MacPage> pagesToRemove = new ArrayList<>();
+        List<MacPage> pagesToSplit;
+        do{
+            List<MacPage> pagesToRemove = new ArrayList<>();
+            pagesToSplit = new ArrayList<>();
 
-        for(MacPage p : inactive){
-            if(freePages >= targetFree){
-                break;
+            for(MacPage p : inactive){
+                if(freePages >= goal){
+                    break;
+                }
+
+                pagesScanned++;
+                long age = now - p.lastAccessTime;
+
+                if(age > inactiveThreshold || urgent){
+                    if(p.size > 1){
+                        pagesToSplit.add(p);
+                        freePages += p.size - p.touched.cardinality();
+                        continue;
+                    }
+
+                    if(compressedPool != null){
+                        compressedPool.store(p.pageNumber, p.modified);
+                        if(verbose){
+                            log("    Compressing page " + p.pageNumber);
+                        }
+                    }else if(p.modified){
+                        if(verbose){
+                            log("    Paging out modified page " + p.pageNumber + " to disk");
+                        }
+                    }else{
+                        if(verbose){
+                            log("    Dropping clean page " + p.pageNumber);
+                        }
+                    }
+
+                    if(p.prefetched){
+                        prefetchWasted++;
+                    }
+                    pagesToRemove.add(p);
+                    pageTable.remove(p.pageNumber);
+                    countRegionPages(p.pageNumber, -1);
+                    freePages++;
+                    pagesFreed++;
+                }
             }
 
-            long age = now - p.lastAccessTime;
+            inactive.removeAll(pagesToRemove);
+            splitPages(pagesToSplit);
 
-            if(age > inactiveThreshold || urgent){
-                if(p.modified){
-                    System.out.println("    Paging out modified page " + p.pageNumber + " to disk");
-                }else{
-                    System.out.println("    Dropping clean page " + p.pageNumber);
-                }
+            // the split base pages can be paged out on the next pass
+        }while(freePages < needed && !pagesToSplit.isEmpty());
+    }
 
-                pagesToRemove.add(p);
-                pageTable.remove(p.pageNumber);
-                freePages++;
+    /**************************************************************/
+    /* Method: splitPages */
+    /* Purpose: Replaces each huge page on the inactive list with the base */
+    /* pages that were used, the unused base pages have already been freed */
+    /* Parameters: */
+    /* List<MacPage> pagesToSplit: huge pages to split */
+    /* Returns: void */
+    /**************************************************************/
+    private void splitPages(List<MacPage> pagesToSplit){
+        for(MacPage p : pagesToSplit){
+            int index = inactive.indexOf(p);
+            inactive.remove(index);
+            hugeTable.remove(Math.floorDiv(p.pageNumber, HUGE_PAGE_SIZE));
+
+            List<MacPage> basePages = new ArrayList<>();
+            for(int i = p.touched.nextSetBit(0); i >= 0; i = p.touched.nextSetBit(i + 1)){
+                MacPage basePage = new MacPage(p.pageNumber + i);
+                basePage.lastAccessTime = p.lastAccessTime;
+                basePage.modified = p.modified;
+                basePages.add(basePage);
+                pageTable.put(basePage.pageNumber, basePage);
+                countRegionPages(basePage.pageNumber, 1);
+            }
+            inactive.addAll(index, basePages);
+
+            pagesFreed += p.size - basePages.size();
+            splits++;
+            if(verbose){
+                log("    Splitting huge page " + p + ", kept " + basePages.size() + " base pages");
             }
         }
+    }
+
+    // Only needed to know when a 2 MB region is empty enough for a huge page
+    private void countRegionPages(int pageNumber, int delta){
+        if(!hugePages){
+            return;
+        }
+        int region = Math.floorDiv(pageNumber, HUGE_PAGE_SIZE);
+        int count = regionPages.getOrDefault(region, 0) + delta;
+        if(count > 0){
+            regionPages.put(region, count);
+        }else{
+            regionPages.remove(region);
+        }
+    }
+
+    // callers check verbose first so quiet replays do not build the message
+    private void log(String message){
+        System.out.println(message);
+    }
 
-        inactive.removeAll(pagesToRemove);
+    /**************************************************************/
+    /* Method: enableCounters */
+    /* Purpose: Starts publishing counters for the dashboard */
+    /* Parameters: */
+    /* Returns: SimCounters */
+    /**************************************************************/
+    public SimCounters enableCounters(){
+        counters = new SimCounters(
+                new String[]{"accesses", "hardFaults", "softFaults", "compressedFaults", "hugeFaults", "splits",
+                        "pagesScanned", "pagesFreed", "prefetched", "prefetchHits", "prefetchWasted"},
+                new String[]{"active", "inactive", "freePages", "maxPhysicalPages"});
+        publishCounters();
+        return counters;
+    }
+
+    /**************************************************************/
+    /* Method: publishCounters */
+    /* Purpose: Publishes the counters now instead of waiting for the next */
+    /* sample, call it after the last access so readers see the final totals */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    public void publishCounters(){
+        if(counters == null){
+            return;
+        }
+        counters.setTotal(0, accesses);
+        counters.setTotal(1, hardFaults);
+        counters.setTotal(2, softFaults);
+        counters.setTotal(3, compressedFaults);
+        counters.setTotal(4, hugeFaults);
+        counters.setTotal(5, splits);
+        counters.setTotal(6, pagesScanned);
+        counters.setTotal(7, pagesFreed);
+        counters.setTotal(8, prefetched);
+        counters.setTotal(9, prefetchHits);
+        counters.setTotal(10, prefetchWasted);
+        counters.setGauge(0, active.size());
+        counters.setGauge(1, inactive.size());
+        counters.setGauge(2, freePages);
+        counters.setGauge(3, maxPhysicalPages);
+        counters.publishHistogram();
     }
 
     public void printState(){
@@ -228,6 +566,18 @@ class MacPageReplacement{
         System.out.println();
     }
 
+    public void printStats(){
+        System.out.println("    Accesses: " + accesses +
+                " | Hard faults: " + hardFaults +
+                " | Soft faults: " + softFaults +
+                " | Compressed faults: " + compressedFaults +
+                " | Huge faults: " + hugeFaults +
+                " | Splits: " + splits +
+                " | Pages scanned: " + pagesScanned +
+                " | Pages freed: " + pagesFreed +
+                " | Free: " + freePages + "/" + maxPhysicalPages);
+    }
+
     private String listPages(List<MacPage> list){
         List<String> names = new ArrayList<>();
         for(MacPage p : list){
@@ -0,0 +1,385 @@
+import java.util.*;
+
+class ProcessWorkingSet{
+    int pid;
+    int minSize;
+    int maxSize;
+    // access ordered so the eldest entry is always the least recently used page
+    LinkedHashMap<Integer, WindowPage> pages;
+    int trimKey; // excess over minSize when the set was last placed in the balancer
+    long faults;
+    long trimmed;
+
+    public ProcessWorkingSet(int pid, int minSize, int maxSize){
+        this.pid = pid;
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        this.pages = new LinkedHashMap<>(16, 0.75f, true);
+        this.trimKey = 0;
+        this.faults = 0;
+        this.trimmed = 0;
+    }
+
+    public int size(){
+        return pages.size();
+    }
+
+    public int excess(){
+        return pages.size() - minSize;
+    }
+
+    /**************************************************************/
+    /* Method: removeOldest */
+    /* Purpose: Removes the least recently used page, pages that have been */
+    /* referenced get a second chance and are moved to the back */
+    /* Parameters: */
+    /* Returns: int: page number removed, -1 if the set is empty */
+    /**************************************************************/
+    public int removeOldest(){
+        if(pages.isEmpty()){
+            return -1;
+        }
+
+        // every page can get at most one second chance so this always ends
+        for(int attempts = 0; attempts <= pages.size(); attempts++){
+            Map.Entry<Integer, WindowPage> eldest = pages.entrySet().iterator().next();
+            WindowPage p = eldest.getValue();
+            if(p.referenced){
+                p.referenced = false;
+                pages.get(p.pageNumber); // moves it to the most recently used end
+            }else{
+                pages.remove(p.pageNumber);
+                return p.pageNumber;
+            }
+        }
+        int pageNumber = pages.keySet().iterator().next();
+        pages.remove(pageNumber);
+        return pageNumber;
+    }
+
+    public String toString(){
+        return "P" + pid + " " + pages.values() + " (" + pages.size() + ", min " + minSize + ", max " + maxSize + ")";
+    }
+}
+
+class WorkingSetManager{
+    int totalFrames;
+    int freeFrames;
+    int lowFrames;    // balancer starts trimming below this many free frames
+    int targetFrames; // balancer trims until this many frames are free
+    int defaultMin;
+    int defaultMax;
+    boolean verbose;
+
+    Map<Integer, ProcessWorkingSet> processes;
+
+    // Processes ordered by how far they are above their minimum, largest first.
+    // Only processes whose size changed are re-inserted, so the balancer never
+    // has to scan every process to find who to trim.
+    TreeSet<ProcessWorkingSet> trimOrder;
+
+    long faults;
+    long trimmedPages;
+    long balancerRuns;
+
+    public WorkingSetManager(int totalFrames, int defaultMin, int defaultMax){
+        if(totalFrames < 1){
+            throw new IllegalArgumentException("Bad frame count: " + totalFrames);
+        }
+        checkLimits(defaultMin, defaultMax);
+        this.totalFrames = totalFrames;
+        this.freeFrames = totalFrames;
+
+        this.lowFrames = totalFrames / 16;
+        if(this.lowFrames < 1){
+            this.lowFrames = 1;
+        }
+
+        this.targetFrames = totalFrames / 8;
+        if(this.targetFrames < this.lowFrames){
+            this.targetFrames = this.lowFrames;
+        }
+
+        this.defaultMin = defaultMin;
+        this.defaultMax = defaultMax;
+        this.verbose = true;
+        this.processes = new HashMap<>();
+        this.trimOrder = new TreeSet<>((a, b) -> {
+            if(a.trimKey != b.trimKey){
+                return Integer.compare(b.trimKey, a.trimKey);
+            }
+            return Integer.compare(a.pid, b.pid);
+        });
+    }
+
+    /**************************************************************/
+    /* Method: addProcess */
+    /* Purpose: Creates a working set for a process with its own limits */
+    /* Parameters: */
+    /* int pid: process id */
+    /* int minSize: pages the balancer will not trim below */
+    /* int maxSize: most pages the process can hold */
+    /* Returns: ProcessWorkingSet */
+    /**************************************************************/
+    public ProcessWorkingSet addProcess(int pid, int minSize, int maxSize){
+        checkLimits(minSize, maxSize);
+        ProcessWorkingSet ws = processes.get(pid);
+        if(ws == null){
+            ws = new ProcessWorkingSet(pid, minSize, maxSize);
+            processes.put(pid, ws);
+            reposition(ws);
+        }
+        return ws;
+    }
+
+    /**************************************************************/
+    /* Method: removeProcess */
+    /* Purpose: Process exited, give all of its frames back */
+    /* Parameters: */
+    /* int pid: process id */
+    /* Returns: void */
+    /**************************************************************/
+    public void removeProcess(int pid){
+        ProcessWorkingSet ws = processes.remove(pid);
+        if(ws != null){
+            trimOrder.remove(ws);
+            freeFrames += ws.size();
+            if(verbose){
+                log("    Process " + pid + " exited, freed " + ws.size() + " frames");
+            }
+        }
+    }
+
+    /**************************************************************/
+    /* Method: accessPage */
+    /* Purpose: Looks up the page in the process working set, otherwise */
+    /* handle the page fault */
+    /* Parameters: */
+    /* int pid: process making the reference */
+    /* int pageNumber: page we are trying to access */
+    /* Returns: void */
+    /**************************************************************/
+    public void accessPage(int pid, int pageNumber){
+        ProcessWorkingSet ws = processes.get(pid);
+        if(ws == null){
+            ws = addProcess(pid, defaultMin, defaultMax);
+        }
+
+        WindowPage p = ws.pages.get(pageNumber);
+        if(p != null){
+            p.markAccessed();
+            if(verbose){
+                log("    P" + pid + " page " + pageNumber + " hit");
+            }
+        }else{
+            handlePageFault(ws, pageNumber);
+        }
+    }
+
+    /**************************************************************/
+    /* Method: handlePageFault */
+    /* Purpose: Finds a frame for the new page. A process at its maximum */
+    /* replaces its own pages, otherwise frames come from the free pool */
+    /* Parameters: */
+    /* ProcessWorkingSet ws: process that faulted */
+    /* int pageNumber: page number we are trying to add */
+    /* Returns: void */
+    /**************************************************************/
+    private void handlePageFault(ProcessWorkingSet ws, int pageNumber){
+        ws.faults++;
+        faults++;
+        if(verbose){
+            log("    P" + ws.pid + " page fault: Adding page " + pageNumber);
+        }
+
+        trimOrder.remove(ws);
+
+        if(ws.size() >= ws.maxSize){
+            // at the maximum the process has to replace one of its own pages
+            int removed = ws.removeOldest();
+            if(verbose){
+                log("    P" + ws.pid + " at max, replaced page " + removed);
+            }
+        }else{
+            if(freeFrames == 0){
+                balance();
+            }
+            if(freeFrames == 0){
+                // nobody is above their minimum, steal from the process that is
+                // closest to its minimum
+                stealFrame(ws);
+            }
+            if(freeFrames > 0){
+                freeFrames--;
+            }else{
+                // no other process has a page to give up
+                int removed = ws.removeOldest();
+                if(verbose){
+                    log("    P" + ws.pid + " replaced its own page " + removed);
+                }
+            }
+        }
+
+        ws.pages.put(pageNumber, new WindowPage(pageNumber));
+        reposition(ws);
+
+        if(freeFrames < lowFrames){
+            balance();
+        }
+    }
+
+    /**************************************************************/
+    /* Method: balance */
+    /* Purpose: Memory is low so trim the working sets that are the */
+    /* furthest above their minimum until enough frames are free */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    private void balance(){
+        balancerRuns++;
+        if(verbose){
+            log("    Running working set balancer");
+        }
+
+        while(freeFrames < targetFrames && !trimOrder.isEmpty()){
+            ProcessWorkingSet ws = trimOrder.first();
+            if(ws.trimKey <= 0){
+                break; // everyone else is already at their minimum
+            }
+            trimOrder.pollFirst();
+
+            // trim half of the excess at a time so the pressure is spread out
+            // instead of taking everything from one process
+            int needed = targetFrames - freeFrames;
+            int toTrim = Math.min(needed, Math.max(1, ws.trimKey / 2));
+            for(int i = 0; i < toTrim; i++){
+                int removed = ws.removeOldest();
+                if(removed < 0){
+                    break;
+                }
+                ws.trimmed++;
+                trimmedPages++;
+                freeFrames++;
+                if(verbose){
+                    log("    Trimmed page " + removed + " from P" + ws.pid);
+                }
+            }
+            reposition(ws);
+        }
+    }
+
+    /**************************************************************/
+    /* Method: stealFrame */
+    /* Purpose: Takes one page from the other process with the most pages */
+    /* over its minimum, or the fewest under it, even if it goes below */
+    /* its minimum */
+    /* Parameters: */
+    /* ProcessWorkingSet faulting: process that needs the frame */
+    /* Returns: void */
+    /**************************************************************/
+    private void stealFrame(ProcessWorkingSet faulting){
+        for(ProcessWorkingSet ws : trimOrder){
+            if(ws != faulting && ws.size() > 0){
+                trimOrder.remove(ws);
+                int removed = ws.removeOldest();
+                ws.trimmed++;
+                trimmedPages++;
+                freeFrames++;
+                if(verbose){
+                    log("    Stole page " + removed + " from P" + ws.pid);
+                }
+                reposition(ws);
+                return;
+            }
+        }
+    }
+
+    // a process needs room for at least the page it faulted on
+    private static void checkLimits(int minSize, int maxSize){
+        if(maxSize < 1 || minSize < 0 || minSize > maxSize){
+            throw new IllegalArgumentException("Bad working set limits: min " + minSize + ", max " + maxSize);
+        }
+    }
+
+    // must only be called once the set has been taken out of trimOrder
+    private void reposition(ProcessWorkingSet ws){
+        ws.trimKey = ws.excess();
+        trimOrder.add(ws);
+    }
+
+    // callers check verbose first so quiet runs do not build the message
+    private void log(String message){
+        System.out.println(message);
+    }
+
+    public void print(){
+        for(ProcessWorkingSet ws : processes.values()){
+            System.out.println("    " + ws);
+        }
+        System.out.println("    Free frames: " + freeFrames + "/" + totalFrames);
+    }
+
+    public void printSummary(){
+        System.out.println("    Processes: " + processes.size() +
+                " | Free frames: " + freeFrames + "/" + totalFrames +
+                " | Faults: " + faults +
+                " | Trimmed: " + trimmedPages +
+                " | Balancer runs: " + balancerRuns);
+    }
+}
+
+public class MultiProcess{
+    public static void main(String[] args){
+        WorkingSetManager manager = new WorkingSetManager(12, 2, 6);
+        System.out.println("Multi-Process Working Set Management\n");
+
+        manager.addProcess(1, 2, 6);
+        manager.addProcess(2, 2, 6);
+        manager.addProcess(3, 3, 8);
+
+        System.out.println("Filling Working Sets\n");
+        int[][] sequence = {{1,1},{1,2},{1,3},{2,10},{2,11},{3,20},{3,21},{3,22}};
+        for(int[] ref : sequence){
+            System.out.println("Access P" + ref[0] + " page " + ref[1]);
+            manager.accessPage(ref[0], ref[1]);
+            manager.print();
+            System.out.println();
+        }
+
+        System.out.println("Testing Per-Process Maximum\n");
+        int[] sequence1 = {4,5,6,7};
+        for(int page : sequence1){
+            System.out.println("Access P1 page " + page);
+            manager.accessPage(1, page);
+            manager.print();
+            System.out.println();
+        }
+
+        System.out.println("Testing Balancer Under Memory Pressure\n");
+        int[] sequence2 = {23,24,25};
+        for(int page : sequence2){
+            System.out.println("Access P3 page " + page);
+            manager.accessPage(3, page);
+            manager.print();
+            System.out.println();
+        }
+
+        System.out.println("Testing Process Exit\n");
+        manager.removeProcess(2);
+        manager.print();
+        System.out.println();
+
+        System.out.println("Testing Many Processes\n");
+        WorkingSetManager large = new WorkingSetManager(50000, 4, 64);
+        large.verbose = false;
+        Random random = new Random(42);
+        long start = System.nanoTime();
+        for(int i = 0; i < 1000000; i++){
+            int pid = random.nextInt(5000);
+            large.accessPage(pid, random.nextInt(48));
+        }
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        large.printSummary();
+        System.out.println("    1000000 accesses in " + elapsed + " ms");
+    }
+}
@@ -0,0 +1,532 @@
+import java.util.*;
+import java.util.concurrent.locks.LockSupport;
+
+/**************************************************************/
+/* Class: NumaNode */
+/* Purpose: One NUMA node with its own frame pool and its own active */
+/* and inactive lists. While a round is running the lists are only */
+/* touched by the node's thread, references reach it in batches through */
+/* a ring buffer. Between rounds the node is drained and the dispatcher */
+/* can read them */
+/**************************************************************/
+class NumaNode{
+    int id;
+    int capacity;
+    int lowWatermark; // the node stops taking new pages below this many free frames
+    int highWatermark; // background reclaim frees frames up to this many
+    LinuxPageReplacement lru;
+    TraceRingBuffer full; // batches of page numbers for this node
+    TraceRingBuffer empty; // batches the node has finished with
+    TraceBatch pending; // batch being filled by the dispatcher
+    Thread worker;
+    volatile boolean stopping;
+    long submitted; // references sent, only written by the dispatcher
+    volatile long processed; // references finished, only written by the node
+
+    // pages reclaimed since the dispatcher last collected them, written
+    // by the node while it runs and emptied by the dispatcher while drained
+    int[] evicted;
+    int evictedCount;
+
+    public NumaNode(int id, int capacity, int batchSize, int batches){
+        this.id = id;
+        this.capacity = capacity;
+        this.lowWatermark = Math.max(1, capacity / 64);
+        this.highWatermark = Math.max(2, capacity / 32);
+        this.lru = new LinuxPageReplacement(capacity);
+        this.lru.verbose = false;
+        this.lru.evictionListener = this::recordEviction;
+        this.full = new TraceRingBuffer(batches);
+        this.empty = new TraceRingBuffer(batches);
+        for(int i = 0; i < batches; i++){
+            empty.offer(new TraceBatch(batchSize));
+        }
+        this.pending = takeEmpty();
+        this.stopping = false;
+        this.submitted = 0;
+        this.processed = 0;
+        this.evicted = new int[1024];
+        this.evictedCount = 0;
+    }
+
+    public void start(){
+        worker = new Thread(this::run, "numa-node-" + id);
+        worker.start();
+    }
+
+    /**************************************************************/
+    /* Method: submit */
+    /* Purpose: Queues a reference for this node, called by the dispatcher */
+    /* Parameters: */
+    /* int pageNumber: page to access on this node */
+    /* Returns: void */
+    /**************************************************************/
+    public void submit(int pageNumber){
+        pending.pages[pending.count++] = pageNumber;
+        submitted++;
+        if(pending.count == pending.pages.length){
+            flush();
+        }
+    }
+
+    public void flush(){
+        if(pending.count == 0){
+            return;
+        }
+        while(!full.offer(pending)){
+            LockSupport.parkNanos(1000);
+        }
+        pending = takeEmpty();
+    }
+
+    /**************************************************************/
+    /* Method: drain */
+    /* Purpose: Waits until the node has run every reference it was sent. */
+    /* After this the dispatcher sees all of the node's writes until it */
+    /* submits again */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    public void drain(){
+        flush();
+        while(processed != submitted){
+            LockSupport.parkNanos(1000);
+        }
+    }
+
+    /**************************************************************/
+    /* Method: stop */
+    /* Purpose: Sends what is left and waits for the node to finish it */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    public void stop() throws InterruptedException{
+        flush();
+        stopping = true;
+        worker.join();
+    }
+
+    // only valid while the node is drained
+    public int freeFrames(){
+        return capacity - lru.usedPages();
+    }
+
+    // only valid while the node is drained
+    public boolean holds(int pageNumber){
+        return lru.isResident(pageNumber);
+    }
+
+    private void recordEviction(int pageNumber){
+        if(evictedCount == evicted.length){
+            evicted = Arrays.copyOf(evicted, evicted.length * 2);
+        }
+        evicted[evictedCount++] = pageNumber;
+    }
+
+    private void run(){
+        while(true){
+            TraceBatch batch = full.poll();
+            if(batch == null){
+                // check stopping before polling again so the last batch is not missed
+                if(stopping){
+                    batch = full.poll();
+                    if(batch == null){
+                        break;
+                    }
+                }else{
+                    LockSupport.parkNanos(1000);
+                    continue;
+                }
+            }
+
+            int count = batch.count;
+            for(int i = 0; i < count; i++){
+                lru.accessPage(batch.pages[i]);
+            }
+
+            // batches end in the same places every run, so reclaiming between
+            // them keeps the node deterministic
+            int free = capacity - lru.usedPages();
+            if(free < lowWatermark){
+                lru.reclaim(highWatermark - free);
+            }
+
+            while(!empty.offer(batch)){
+                Thread.onSpinWait();
+            }
+            processed += count; // single writer, publishes the list updates above
+        }
+    }
+
+    private TraceBatch takeEmpty(){
+        TraceBatch batch;
+        while((batch = empty.poll()) == null){
+            LockSupport.parkNanos(1000);
+        }
+        batch.count = 0;
+        return batch;
+    }
+}
+
+/**************************************************************/
+/* Class: PageLocations */
+/* Purpose: Open addressing table from page number to the node that */
+/* holds it and the round it was last routed in. Kept as int arrays so */
+/* looking a page up on every reference does not box anything */
+/**************************************************************/
+class PageLocations{
+    int[] pages;
+    int[] nodes; // -1 marks an empty slot
+    int[] rounds;
+    int size;
+    int mask;
+
+    public PageLocations(int capacity){
+        int slots = 16;
+        while(slots < capacity * 2){
+            slots <<= 1;
+        }
+        this.pages = new int[slots];
+        this.nodes = new int[slots];
+        this.rounds = new int[slots];
+        Arrays.fill(nodes, -1);
+        this.size = 0;
+        this.mask = slots - 1;
+    }
+
+    // slot holding the page, or -1
+    public int find(int pageNumber){
+        for(int slot = hash(pageNumber); nodes[slot] >= 0; slot = (slot + 1) & mask){
+            if(pages[slot] == pageNumber){
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    public void put(int pageNumber, int node, int round){
+        int slot = hash(pageNumber);
+        while(nodes[slot] >= 0 && pages[slot] != pageNumber){
+            slot = (slot + 1) & mask;
+        }
+        if(nodes[slot] < 0){
+            size++;
+        }
+        pages[slot] = pageNumber;
+        nodes[slot] = node;
+        rounds[slot] = round;
+        if(size * 2 > nodes.length){
+            grow();
+        }
+    }
+
+    /**************************************************************/
+    /* Method: removeSlot */
+    /* Purpose: Empties a slot and moves later entries of the same probe */
+    /* run back, so lookups never have to skip over deleted entries */
+    /* Parameters: */
+    /* int slot: slot returned by find */
+    /* Returns: void */
+    /**************************************************************/
+    public void removeSlot(int slot){
+        size--;
+        int hole = slot;
+        int next = (hole + 1) & mask;
+        while(nodes[next] >= 0){
+            int home = hash(pages[next]);
+            // move the entry back unless its home lies between the hole and it
+            if(((next - home) & mask) >= ((next - hole) & mask)){
+                pages[hole] = pages[next];
+                nodes[hole] = nodes[next];
+                rounds[hole] = rounds[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        nodes[hole] = -1;
+    }
+
+    private int hash(int pageNumber){
+        int h = pageNumber * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    private void grow(){
+        int[] oldPages = pages;
+        int[] oldNodes = nodes;
+        int[] oldRounds = rounds;
+        pages = new int[oldPages.length * 2];
+        nodes = new int[oldNodes.length * 2];
+        rounds = new int[oldRounds.length * 2];
+        Arrays.fill(nodes, -1);
+        mask = nodes.length - 1;
+        size = 0;
+        for(int i = 0; i < oldNodes.length; i++){
+            if(oldNodes[i] >= 0){
+                put(oldPages[i], oldNodes[i], oldRounds[i]);
+            }
+        }
+    }
+}
+
+/**************************************************************/
+/* Class: NumaMemory */
+/* Purpose: Places pages on NUMA nodes and sends each reference to the */
+/* node that holds the page. The dispatcher keeps its own table of where */
+/* pages are and routes one round while the nodes run the one before. */
+/* Evictions are only applied when the nodes are drained between rounds, */
+/* so placement only depends on the trace and not on thread timing. A */
+/* page that no node holds is placed on the node of the CPU that faults */
+/* on it, unless that node is below its low watermark */
+/**************************************************************/
+class NumaMemory{
+    NumaNode[] nodes;
+    long localCost; // nanoseconds for an access to the CPU's own node
+    long remoteCost; // nanoseconds for an access to another node
+
+    PageLocations locations;
+    int round; // number of the round being routed
+
+    // references waiting for the next round
+    int[] roundCpus;
+    int[] roundPages;
+    int[] roundHomes;
+    int roundCount;
+    int[] freeFrames; // free frames per node as of the last drain, less pages placed since
+
+    long localAccesses;
+    long remoteAccesses;
+    long fallbackPlacements; // pages placed away from the faulting CPU's node
+
+    public NumaMemory(int nodeCount, int framesPerNode, long localCost, long remoteCost){
+        this.nodes = new NumaNode[nodeCount];
+        for(int i = 0; i < nodeCount; i++){
+            nodes[i] = new NumaNode(i, framesPerNode, 1024, 8);
+        }
+        this.localCost = localCost;
+        this.remoteCost = remoteCost;
+        this.locations = new PageLocations(framesPerNode * nodeCount);
+        this.round = 0;
+
+        // half of the batches a node has, so handing a round out seldom waits on a node
+        int roundSize = 1024 * 4 * nodeCount;
+        this.roundCpus = new int[roundSize];
+        this.roundPages = new int[roundSize];
+        this.roundHomes = new int[roundSize];
+        this.roundCount = 0;
+        this.freeFrames = new int[nodeCount];
+        for(int i = 0; i < nodeCount; i++){
+            freeFrames[i] = framesPerNode;
+        }
+    }
+
+    public void start(){
+        for(NumaNode node : nodes){
+            node.start();
+        }
+    }
+
+    public void stop() throws InterruptedException{
+        runRound();
+        for(NumaNode node : nodes){
+            node.drain();
+        }
+        collect();
+        for(NumaNode node : nodes){
+            node.stop();
+        }
+    }
+
+    /**************************************************************/
+    /* Method: accessPage */
+    /* Purpose: Adds a reference to the current round, the round is run */
+    /* once it is full */
+    /* Parameters: */
+    /* int cpuNode: node of the CPU making the reference */
+    /* int pageNumber: page we are trying to access */
+    /* Returns: void */
+    /**************************************************************/
+    public void accessPage(int cpuNode, int pageNumber){
+        roundCpus[roundCount] = cpuNode;
+        roundPages[roundCount] = pageNumber;
+        roundCount++;
+        if(roundCount == roundPages.length){
+            runRound();
+        }
+    }
+
+    /**************************************************************/
+    /* Method: runRound */
+    /* Purpose: Routes the round while the nodes finish the previous one, */
+    /* then collects what they evicted and hands the new round out */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    private void runRound(){
+        round++;
+        for(int i = 0; i < roundCount; i++){
+            int cpuNode = roundCpus[i];
+            int pageNumber = roundPages[i];
+            int slot = locations.find(pageNumber);
+            int home;
+            if(slot >= 0){
+                home = locations.nodes[slot];
+                locations.rounds[slot] = round;
+            }else{
+                home = place(cpuNode);
+                locations.put(pageNumber, home, round);
+            }
+            roundHomes[i] = home;
+
+            if(home == cpuNode){
+                localAccesses++;
+            }else{
+                remoteAccesses++;
+            }
+        }
+
+        for(NumaNode node : nodes){
+            node.drain();
+        }
+        collect();
+
+        for(int i = 0; i < roundCount; i++){
+            nodes[roundHomes[i]].submit(roundPages[i]);
+        }
+        for(NumaNode node : nodes){
+            node.flush();
+        }
+        roundCount = 0;
+    }
+
+    /**************************************************************/
+    /* Method: collect */
+    /* Purpose: Takes the pages each drained node evicted out of the */
+    /* table and reads how many frames it has free. A page routed in the */
+    /* round about to run, or loaded again after it was evicted, stays */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    private void collect(){
+        for(NumaNode node : nodes){
+            for(int i = 0; i < node.evictedCount; i++){
+                int pageNumber = node.evicted[i];
+                int slot = locations.find(pageNumber);
+                if(slot >= 0 && locations.nodes[slot] == node.id &&
+                        locations.rounds[slot] != round && !node.holds(pageNumber)){
+                    locations.removeSlot(slot);
+                }
+            }
+            node.evictedCount = 0;
+            freeFrames[node.id] = node.freeFrames();
+        }
+    }
+
+    /**************************************************************/
+    /* Method: place */
+    /* Purpose: Picks the local node if it is above its low watermark, */
+    /* otherwise the node with the most frames above its watermark. If */
+    /* every node is low the page stays local and the local node reclaims */
+    /* Parameters: */
+    /* int cpuNode: node of the CPU that faulted */
+    /* Returns: int: node to place the page on */
+    /**************************************************************/
+    private int place(int cpuNode){
+        int best = cpuNode;
+        if(freeFrames[cpuNode] <= nodes[cpuNode].lowWatermark){
+            int bestSpare = 0;
+            for(NumaNode node : nodes){
+                int spare = freeFrames[node.id] - node.lowWatermark;
+                if(spare > bestSpare){
+                    best = node.id;
+                    bestSpare = spare;
+                }
+            }
+            if(best != cpuNode){
+                fallbackPlacements++;
+            }
+        }
+        freeFrames[best]--;
+        return best;
+    }
+
+    public long accessCost(){
+        return localAccesses * localCost + remoteAccesses * remoteCost;
+    }
+
+    public void printStats(){
+        for(NumaNode node : nodes){
+            System.out.println("    Node " + node.id +
+                    " | Accesses: " + node.lru.accesses +
+                    " | Faults: " + node.lru.pageFaults +
+                    " | Used: " + node.lru.usedPages() + "/" + node.capacity);
+        }
+        System.out.println("    Local: " + localAccesses +
+                " | Remote: " + remoteAccesses +
+                " | Fallback placements: " + fallbackPlacements +
+                " | Access cost: " + accessCost() / 1000000 + " ms");
+    }
+}
+
+public class Numa{
+    /**************************************************************/
+    /* Method: replay */
+    /* Purpose: Runs a trace where each node's CPUs mostly use their own */
+    /* pages, with some pages shared by every node */
+    /* Parameters: */
+    /* int nodeCount: number of nodes */
+    /* int framesPerNode: frames on each node */
+    /* int privatePages: pages used only by one node's CPUs */
+    /* int references: number of page references */
+    /* Returns: long: milliseconds taken */
+    /**************************************************************/
+    private static long replay(int nodeCount, int framesPerNode, int privatePages, int references) throws InterruptedException{
+        NumaMemory memory = new NumaMemory(nodeCount, framesPerNode, 100, 160);
+        Random random = new Random(42);
+        memory.start();
+        long start = System.nanoTime();
+        for(int i = 0; i < references; i++){
+            int cpuNode = random.nextInt(nodeCount);
+            int page;
+            if(random.nextInt(10) < 8){
+                page = cpuNode * privatePages + random.nextInt(privatePages);
+            }else{
+                page = 1000000 + random.nextInt(4000);
+            }
+            memory.accessPage(cpuNode, page);
+        }
+        memory.stop();
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        memory.printStats();
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws InterruptedException{
+        int totalFrames = 16384;
+        int references = 1000000;
+
+        System.out.println("NUMA Page Replacement\n");
+        System.out.println("Replaying " + references + " references over " + totalFrames + " frames\n");
+
+        for(int nodeCount : new int[]{1, 2, 4}){
+            System.out.println(nodeCount + " node(s)");
+            long elapsed = replay(nodeCount, totalFrames / nodeCount, 24000 / nodeCount, references);
+            System.out.println("    Time: " + elapsed + " ms");
+            System.out.println();
+        }
+
+        // every node gets the same frames, pages and references, so each
+        // node's lists stay the same length and any speedup is from the threads
+        int framesPerNode = 4096;
+        int referencesPerNode = 250000;
+        System.out.println("Scaling with " + framesPerNode + " frames and " + referencesPerNode + " references per node");
+        System.out.println("(" + Runtime.getRuntime().availableProcessors() + " CPU(s) available)\n");
+        for(int nodeCount : new int[]{1, 2, 4}){
+            System.out.println(nodeCount + " node(s)");
+            long elapsed = replay(nodeCount, framesPerNode, 6000, referencesPerNode * nodeCount);
+            System.out.println("    Time: " + elapsed + " ms | Throughput: " +
+                    (referencesPerNode * nodeCount) / Math.max(elapsed, 1) + " references/ms");
+            System.out.println();
+        }
+    }
+}
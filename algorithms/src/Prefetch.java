@@ -0,0 +1,267 @@
+import java.util.*;
+
+/**************************************************************/
+/* Interface: Prefetcher */
+/* Purpose: Decides which pages to read in along with a faulting page. */
+/* Pages are written into the given array and the count is returned */
+/**************************************************************/
+interface Prefetcher{
+    // a page had to be read from disk
+    int onFault(int pageNumber, int[] pages);
+
+    // a page that was read ahead has been used for the first time
+    int onPrefetchHit(int pageNumber, int[] pages);
+
+    // largest number of pages returned by one call
+    int maxPages();
+}
+
+/**************************************************************/
+/* Class: ReadaheadPrefetcher */
+/* Purpose: Works like the Linux ondemand readahead. A fault right after */
+/* an earlier fault starts a stream with a small window, and when the */
+/* stream reaches the first page of a window the next window is read */
+/* ahead at twice the size. A fault that breaks a stream shrinks its */
+/* window back. With stride detection on, faults the same distance */
+/* apart are treated as a stream with that step */
+/**************************************************************/
+class ReadaheadPrefetcher implements Prefetcher{
+    static int STREAMS = 8; // streams followed at the same time, like open files
+    static int MAX_STRIDE = 64; // furthest apart two faults can be and still be one stream
+
+    int initialSize;
+    int maxSize;
+    boolean detectStride;
+    ReadaheadStream[] streams;
+    long clock;
+
+    public ReadaheadPrefetcher(int initialSize, int maxSize, boolean detectStride){
+        this.initialSize = initialSize;
+        this.maxSize = maxSize;
+        this.detectStride = detectStride;
+        this.streams = new ReadaheadStream[STREAMS];
+        for(int i = 0; i < STREAMS; i++){
+            streams[i] = new ReadaheadStream(initialSize);
+        }
+        this.clock = 0;
+    }
+
+    /**************************************************************/
+    /* Method: onFault */
+    /* Purpose: Grows the window if the fault continues a stream, starts */
+    /* a stream if it follows a recent fault, otherwise reads nothing */
+    /* Parameters: */
+    /* int pageNumber: page that faulted */
+    /* int[] pages: where to write the pages to read ahead */
+    /* Returns: int: number of pages to read ahead */
+    /**************************************************************/
+    public int onFault(int pageNumber, int[] pages){
+        clock++;
+        int reach = detectStride ? MAX_STRIDE : 1;
+        ReadaheadStream near = null;
+
+        for(ReadaheadStream s : streams){
+            if(s.step != 0 && pageNumber == s.nextPage){
+                // the stream ran past the window before it was used, read more next time
+                s.size = Math.min(s.size * 2, maxSize);
+                s.lastFault = pageNumber;
+                s.lastUsed = clock;
+                return fillWindow(s, pageNumber + s.step, pages);
+            }
+            if(near == null && s.lastUsed > 0 && pageNumber != s.lastFault && Math.abs(pageNumber - s.lastFault) <= reach){
+                near = s;
+            }
+        }
+
+        if(near == null){
+            // random access, start following it in place of the oldest stream
+            ReadaheadStream oldest = streams[0];
+            for(ReadaheadStream s : streams){
+                if(s.lastUsed < oldest.lastUsed){
+                    oldest = s;
+                }
+            }
+            oldest.reset(pageNumber, clock, initialSize);
+            return 0;
+        }
+
+        int delta = pageNumber - near.lastFault;
+        near.lastFault = pageNumber;
+        near.lastUsed = clock;
+        if(delta == 1 || (detectStride && delta == near.lastDelta)){
+            near.step = delta;
+            near.size = initialSize;
+            near.lastDelta = delta;
+            return fillWindow(near, pageNumber + delta, pages);
+        }
+
+        // the stream broke, shrink it back until it shows a pattern again
+        near.step = 0;
+        near.size = initialSize;
+        near.lastDelta = delta;
+        return 0;
+    }
+
+    /**************************************************************/
+    /* Method: onPrefetchHit */
+    /* Purpose: A stream reached its last window, read the next one */
+    /* Parameters: */
+    /* int pageNumber: prefetched page that was used */
+    /* int[] pages: where to write the pages to read ahead */
+    /* Returns: int: number of pages to read ahead */
+    /**************************************************************/
+    public int onPrefetchHit(int pageNumber, int[] pages){
+        for(ReadaheadStream s : streams){
+            if(s.step != 0 && pageNumber == s.marker){
+                clock++;
+                s.size = Math.min(s.size * 2, maxSize);
+                s.lastFault = pageNumber;
+                s.lastUsed = clock;
+                return fillWindow(s, s.nextPage, pages);
+            }
+        }
+        return 0;
+    }
+
+    public int maxPages(){
+        return maxSize;
+    }
+
+    private int fillWindow(ReadaheadStream s, int start, int[] pages){
+        for(int i = 0; i < s.size; i++){
+            pages[i] = start + s.step * i;
+        }
+        s.marker = start;
+        s.nextPage = start + s.step * s.size;
+        return s.size;
+    }
+}
+
+class ReadaheadStream{
+    int size; // current window size
+    int step; // 1 for sequential, the stride otherwise, 0 when there is no pattern yet
+    int marker; // first page of the last window, using it triggers the next window
+    int nextPage; // page right after the last window
+    int lastFault;
+    int lastDelta;
+    long lastUsed; // 0 until the stream has seen a fault
+
+    public ReadaheadStream(int size){
+        this.size = size;
+    }
+
+    public void reset(int pageNumber, long now, int initialSize){
+        this.size = initialSize;
+        this.step = 0;
+        this.lastFault = pageNumber;
+        this.lastDelta = 0;
+        this.lastUsed = now;
+    }
+}
+
+public class Prefetch{
+    /**************************************************************/
+    /* Method: buildTrace */
+    /* Purpose: Makes a trace that mixes sequential file scans, a strided */
+    /* walk over a table and random lookups */
+    /* Parameters: */
+    /* int length: number of page references */
+    /* Returns: int[]: page numbers */
+    /**************************************************************/
+    private static int[] buildTrace(int length){
+        Random random = new Random(42);
+        int[] trace = new int[length];
+        int scan = 0;
+        int stride = 0;
+        for(int i = 0; i < length; i++){
+            int kind = random.nextInt(10);
+            if(kind < 5){
+                trace[i] = 1000000 + scan++;
+            }else if(kind < 7){
+                trace[i] = 2000000 + (stride % 50000) * 16;
+                stride++;
+            }else{
+                trace[i] = random.nextInt(20000);
+            }
+        }
+        return trace;
+    }
+
+    private static void printPrefetchStats(long prefetched, long hits, long wasted){
+        double hitRate = prefetched == 0 ? 0 : 100.0 * hits / prefetched;
+        System.out.println("    Prefetched: " + prefetched +
+                " | Prefetch hits: " + hits +
+                " (" + String.format("%.1f", hitRate) + "%)" +
+                " | Evicted unused: " + wasted);
+    }
+
+    public static void main(String[] args){
+        int memory = 8192;
+        int[] trace = buildTrace(200000);
+        String[] names = {"no prefetch", "readahead", "readahead + stride"};
+
+        System.out.println("Prefetch Comparison\n");
+        System.out.println("Replaying " + trace.length + " pages with " + memory + " pages of memory\n");
+
+        for(int mode = 0; mode < names.length; mode++){
+            System.out.println("Linux, " + names[mode]);
+            LinuxPageReplacement linux = new LinuxPageReplacement(memory);
+            linux.verbose = false;
+            if(mode > 0){
+                linux.prefetcher = new ReadaheadPrefetcher(4, 32, mode == 2);
+            }
+            for(int page : trace){
+                linux.accessPage(page);
+            }
+            linux.printStats();
+            printPrefetchStats(linux.prefetched, linux.prefetchHits, linux.prefetchWasted);
+            System.out.println();
+        }
+
+        for(int mode = 0; mode < names.length; mode++){
+            System.out.println("MacOS, " + names[mode]);
+            MacPageReplacement mac = new MacPageReplacement(memory);
+            mac.verbose = false;
+            // a replay runs far faster than the age thresholds, so age every page
+            // out of the active list straight away and let the inactive list act as LRU
+            mac.activeThreshold = -1;
+            if(mode > 0){
+                mac.prefetcher = new ReadaheadPrefetcher(4, 32, mode == 2);
+            }
+            for(int page : trace){
+                mac.accessPage(page, false);
+            }
+            mac.printStats();
+            printPrefetchStats(mac.prefetched, mac.prefetchHits, mac.prefetchWasted);
+            System.out.println();
+        }
+
+        // a plain scan far bigger than memory, every window should be used
+        // before it is reclaimed so only the first couple of pages fault
+        int scanLength = 100000;
+        System.out.println("Sequential scan of " + scanLength + " pages\n");
+
+        System.out.println("Linux, readahead");
+        LinuxPageReplacement linux = new LinuxPageReplacement(memory);
+        linux.verbose = false;
+        linux.prefetcher = new ReadaheadPrefetcher(4, 32, false);
+        for(int page = 0; page < scanLength; page++){
+            linux.accessPage(page);
+        }
+        linux.printStats();
+        printPrefetchStats(linux.prefetched, linux.prefetchHits, linux.prefetchWasted);
+        System.out.println();
+
+        System.out.println("MacOS, readahead");
+        MacPageReplacement mac = new MacPageReplacement(memory);
+        mac.verbose = false;
+        mac.activeThreshold = -1;
+        mac.prefetcher = new ReadaheadPrefetcher(4, 32, false);
+        for(int page = 0; page < scanLength; page++){
+            mac.accessPage(page, false);
+        }
+        mac.printStats();
+        printPrefetchStats(mac.prefetched, mac.prefetchHits, mac.prefetchWasted);
+        System.out.println();
+    }
+}
@@ -0,0 +1,350 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.IntConsumer;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+class TraceBatch{
+    int[] pages;
+    int count;
+
+    public TraceBatch(int size){
+        this.pages = new int[size];
+        this.count = 0;
+    }
+}
+
+/**************************************************************/
+/* Class: TraceRingBuffer */
+/* Purpose: Bounded lock-free queue for exactly one producer thread */
+/* and one consumer thread. Each side only ever writes its own index */
+/**************************************************************/
+class TraceRingBuffer{
+    private TraceBatch[] slots;
+    private int mask;
+    private AtomicLong head; // next slot to read, only written by the consumer
+    private AtomicLong tail; // next slot to write, only written by the producer
+
+    public TraceRingBuffer(int capacity){
+        // round up to a power of two so the slot index is a mask instead of a modulo
+        int size = 1;
+        while(size < capacity){
+            size <<= 1;
+        }
+        this.slots = new TraceBatch[size];
+        this.mask = size - 1;
+        this.head = new AtomicLong(0);
+        this.tail = new AtomicLong(0);
+    }
+
+    /**************************************************************/
+    /* Method: offer */
+    /* Purpose: Adds a batch to the queue if there is room */
+    /* Parameters: */
+    /* TraceBatch batch: batch to hand to the other thread */
+    /* Returns: boolean: false if the queue is full */
+    /**************************************************************/
+    public boolean offer(TraceBatch batch){
+        long t = tail.get();
+        if(t - head.get() == slots.length){
+            return false;
+        }
+        slots[(int) (t & mask)] = batch;
+        tail.lazySet(t + 1); // publishes the slot write above
+        return true;
+    }
+
+    /**************************************************************/
+    /* Method: poll */
+    /* Purpose: Takes the oldest batch off the queue */
+    /* Parameters: */
+    /* Returns: TraceBatch: null if the queue is empty */
+    /**************************************************************/
+    public TraceBatch poll(){
+        long h = head.get();
+        if(h == tail.get()){
+            return null;
+        }
+        int index = (int) (h & mask);
+        TraceBatch batch = slots[index];
+        slots[index] = null;
+        head.lazySet(h + 1);
+        return batch;
+    }
+}
+
+/**************************************************************/
+/* Class: TraceWriter */
+/* Purpose: Writes page numbers as gzip compressed, zigzag varint */
+/* encoded deltas from the previous page number */
+/**************************************************************/
+class TraceWriter implements Closeable{
+    private OutputStream out;
+    private int previous;
+
+    public TraceWriter(String path) throws IOException{
+        this.out = new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(path), 1 << 16), 1 << 16);
+        this.previous = 0;
+    }
+
+    public void write(int pageNumber) throws IOException{
+        int delta = pageNumber - previous;
+        previous = pageNumber;
+
+        // zigzag so small negative deltas also encode in one byte
+        int value = (delta << 1) ^ (delta >> 31);
+        while((value & ~0x7F) != 0){
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public void close() throws IOException{
+        out.close();
+    }
+}
+
+/**************************************************************/
+/* Class: TraceReader */
+/* Purpose: Decompresses and decodes a trace on its own thread so the */
+/* thread running the page replacement policy only replays page numbers. */
+/* Batches are allocated once and passed back and forth between the two */
+/* threads, so no garbage is created per record */
+/**************************************************************/
+class TraceReader{
+    private String path;
+    private TraceRingBuffer full;  // decoded batches, producer to consumer
+    private TraceRingBuffer empty; // used batches, consumer back to producer
+    private Thread producer;
+    private volatile boolean finished;
+    private volatile boolean cancelled; // replay stopped early, the decoder should give up
+    private volatile Throwable error;
+
+    public TraceReader(String path, int batchSize, int batches){
+        if(batchSize < 1 || batches < 1){
+            throw new IllegalArgumentException("Bad trace reader sizes: batch " + batchSize + ", batches " + batches);
+        }
+        this.path = path;
+        this.full = new TraceRingBuffer(batches);
+        this.empty = new TraceRingBuffer(batches);
+        for(int i = 0; i < batches; i++){
+            empty.offer(new TraceBatch(batchSize));
+        }
+        this.finished = false;
+        this.cancelled = false;
+        this.error = null;
+    }
+
+    /**************************************************************/
+    /* Method: start */
+    /* Purpose: Starts the decoding thread */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    public void start(){
+        producer = new Thread(this::decode, "trace-decoder");
+        producer.setDaemon(true);
+        producer.start();
+    }
+
+    /**************************************************************/
+    /* Method: replay */
+    /* Purpose: Hands every page number in the trace to the policy, in order */
+    /* Parameters: */
+    /* IntConsumer policy: called once per page reference */
+    /* Returns: long: number of references replayed */
+    /**************************************************************/
+    public long replay(IntConsumer policy) throws IOException{
+        if(producer == null){
+            start();
+        }
+
+        try{
+            return consume(policy);
+        }finally{
+            // if the policy threw, the decoder would otherwise wait for room forever
+            cancelled = true;
+        }
+    }
+
+    private long consume(IntConsumer policy) throws IOException{
+        long replayed = 0;
+        while(true){
+            TraceBatch batch = full.poll();
+            if(batch == null){
+                // check finished before polling again, otherwise the last
+                // batch could be published between the poll and the check
+                if(finished){
+                    batch = full.poll();
+                    if(batch == null){
+                        break;
+                    }
+                }else{
+                    Thread.onSpinWait();
+                    continue;
+                }
+            }
+
+            int[] pages = batch.pages;
+            for(int i = 0; i < batch.count; i++){
+                policy.accept(pages[i]);
+            }
+            replayed += batch.count;
+
+            while(!empty.offer(batch)){
+                Thread.onSpinWait();
+            }
+        }
+
+        Throwable e = error;
+        if(e instanceof IOException){
+            throw (IOException) e;
+        }
+        if(e instanceof RuntimeException){
+            throw (RuntimeException) e;
+        }
+        if(e instanceof Error){
+            throw (Error) e;
+        }
+        if(e != null){
+            throw new IOException("Trace decoder failed", e);
+        }
+        return replayed;
+    }
+
+    /**************************************************************/
+    /* Method: decode */
+    /* Purpose: Producer thread, fills empty batches with decoded page */
+    /* numbers and publishes them to the consumer */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    private void decode(){
+        byte[] buffer = new byte[1 << 16];
+        try(InputStream in = new GZIPInputStream(new FileInputStream(path), 1 << 16)){
+            int previous = 0;
+            int length = 0;
+            int position = 0;
+            int value = 0;
+            int shift = 0;
+
+            TraceBatch batch = takeEmpty();
+            while(true){
+                if(position == length){
+                    length = in.read(buffer, 0, buffer.length);
+                    position = 0;
+                    if(length < 0){
+                        if(shift != 0){
+                            throw new IOException("Corrupt trace: record cut off at end of file");
+                        }
+                        break;
+                    }
+                    continue;
+                }
+
+                int b = buffer[position++];
+                // an int needs at most 5 bytes and only 4 bits of the last one
+                if(shift == 28 && (b & 0xF0) != 0){
+                    throw new IOException("Corrupt trace: record longer than 32 bits");
+                }
+                value |= (b & 0x7F) << shift;
+                if((b & 0x80) != 0){
+                    shift += 7;
+                    continue;
+                }
+
+                int delta = (value >>> 1) ^ -(value & 1);
+                previous += delta;
+                value = 0;
+                shift = 0;
+
+                batch.pages[batch.count++] = previous;
+                if(batch.count == batch.pages.length){
+                    publish(batch);
+                    batch = takeEmpty();
+                }
+            }
+
+            if(batch.count > 0){
+                publish(batch);
+            }
+        }catch(CancellationException e){
+            // replay has stopped, nobody is waiting for the rest
+        }catch(Throwable e){
+            // anything the decoder throws has to reach replay, otherwise it
+            // would look like the trace just ended
+            error = e;
+        }finally{
+            finished = true;
+        }
+    }
+
+    private TraceBatch takeEmpty(){
+        TraceBatch batch;
+        while((batch = empty.poll()) == null){
+            if(cancelled){
+                throw new CancellationException();
+            }
+            // consumer is behind, back off instead of burning the core it might need
+            LockSupport.parkNanos(1000);
+        }
+        batch.count = 0;
+        return batch;
+    }
+
+    private void publish(TraceBatch batch){
+        while(!full.offer(batch)){
+            if(cancelled){
+                throw new CancellationException();
+            }
+            LockSupport.parkNanos(1000);
+        }
+    }
+}
+
+public class Trace{
+    public static void main(String[] args) throws IOException{
+        System.out.println("Compressed Trace Replay\n");
+
+        String path;
+        if(args.length > 0){
+            path = args[0];
+        }else{
+            // no trace given, write a sample one with a loop, a scan and random pages
+            File file = File.createTempFile("pages", ".trace.gz");
+            file.deleteOnExit();
+            path = file.getPath();
+
+            Random random = new Random(42);
+            try(TraceWriter writer = new TraceWriter(path)){
+                for(int round = 0; round < 200; round++){
+                    for(int page = 0; page < 400; page++){
+                        writer.write(page);
+                    }
+                    for(int page = 0; page < 2000; page++){
+                        writer.write(100000 + round * 2000 + page);
+                    }
+                    for(int i = 0; i < 2000; i++){
+                        writer.write(random.nextInt(5000));
+                    }
+                }
+            }
+            System.out.println("Wrote sample trace to " + path + " (" + new File(path).length() + " bytes)\n");
+        }
+
+        System.out.println("Decoding on a separate thread\n");
+        LinuxPageReplacement linux = new LinuxPageReplacement(1000);
+        linux.verbose = false;
+        TraceReader reader = new TraceReader(path, 4096, 8);
+        long start = System.nanoTime();
+        long replayed = reader.replay(linux::accessPage);
+        long elapsed = (System.nanoTime() - start) / 1000000;
+        System.out.println("    Replayed " + replayed + " references in " + elapsed + " ms");
+        System.out.println("    Page faults: " + linux.pageFaults + "/" + linux.accesses);
+        System.out.println();
+    }
+}
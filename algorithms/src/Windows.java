@@ -40,16 +40,21 @@ class WorkingSet{
     int maxSize;
     long ageThreshold;
     Map<Integer, WindowPage> pages;
-    //int totalAccesses;
+    long totalAccesses;
+    long pageFaults;
+    long removedPages;
     long lastReferenceClearTime;
     static long REFERENCE_CLEAR_INTERVAL = 1000;
+    boolean verbose; // print every step, turn off when replaying long traces
+    SimCounters counters; // published for the dashboard, null when nobody is watching
 
     public WorkingSet(int maxSize, long ageThreshold){
         this.maxSize = maxSize;
         this.ageThreshold = ageThreshold;
         this.pages = new HashMap<>();
-        //this.totalAccesses = 0;
+        this.totalAccesses = 0;
         this.lastReferenceClearTime = System.currentTimeMillis();
+        this.verbose = true;
     }
 
     /**************************************************************/
@@ -60,19 +65,25 @@ class WorkingSet{
     /* Returns: void */
     /**************************************************************/
     public void accessPage(int pageNumber){
-        //totalAccesses++;
+        totalAccesses++;
 
         clearReference(); //after a certain amount of time, set refrence boolean to false
 
         if(pages.containsKey(pageNumber)){
             WindowPage p = pages.get(pageNumber);
             p.markAccessed();
-            System.out.println("    Page " + pageNumber + " hit");
+            if(verbose){
+                log("    Page " + pageNumber + " hit");
+            }
         }else{
             handlePageFault(pageNumber);
         }
 
         trimWorkingSet(); // This will remove old pages that arent being referenced
+
+        if(counters != null && SimCounters.sampleDue(totalAccesses)){
+            publishCounters();
+        }
     }
 
     /**************************************************************/
@@ -100,7 +111,13 @@ class WorkingSet{
     /* Returns: void */
     /**************************************************************/
     private void handlePageFault(int pageNumber){
-        System.out.println("    Page fault: Adding page " + pageNumber);
+        pageFaults++;
+        if(counters != null){
+            counters.recordFault(totalAccesses);
+        }
+        if(verbose){
+            log("    Page fault: Adding page " + pageNumber);
+        }
 
         // If the working set is full then the algorithm will begin removing old pages in the set
         if(pages.size() >= maxSize){
@@ -130,7 +147,9 @@ class WorkingSet{
         for(WindowPage p : pages.values()){
             long age = currentTime - p.lastAccessTime;
             if(age > ageThreshold && !p.referenced){
-                System.out.println("    Page " + p.pageNumber + " removed from working set");
+                if(verbose){
+                    log("    Page " + p.pageNumber + " removed from working set");
+                }
                 removePages.add(p.pageNumber);
             }
         }
@@ -141,6 +160,7 @@ class WorkingSet{
             for(int num : removePages){
                 // Otherwise remove all the pages in the removePages ArrayList
                 pages.remove(num);
+                removedPages++;
             }
         }
     }
@@ -165,8 +185,11 @@ class WorkingSet{
         }
 
         if(oldest != null){
-            System.out.println("    Page " + oldest.pageNumber + " removed from working set");
+            if(verbose){
+                log("    Page " + oldest.pageNumber + " removed from working set");
+            }
             pages.remove(oldest.pageNumber);
+            removedPages++;
         }
     }
 
@@ -190,7 +213,9 @@ class WorkingSet{
                     p.referenced = false;
                 }else{
                     // Otherwise remove the page
-                    System.out.println("    Page " + p.pageNumber + " removed from working set");
+                    if(verbose){
+                        log("    Page " + p.pageNumber + " removed from working set");
+                    }
                     removePages.add(p.pageNumber);
                 }
             }
@@ -199,10 +224,49 @@ class WorkingSet{
         // remove pages
         for(int num : removePages){
             pages.remove(num);
+            removedPages++;
         }
 
     }
 
+    /**************************************************************/
+    /* Method: enableCounters */
+    /* Purpose: Starts publishing counters for the dashboard */
+    /* Parameters: */
+    /* Returns: SimCounters */
+    /**************************************************************/
+    public SimCounters enableCounters(){
+        counters = new SimCounters(
+                new String[]{"accesses", "faults", "removedPages"},
+                new String[]{"size", "maxSize"});
+        publishCounters();
+        return counters;
+    }
+
+    /**************************************************************/
+    /* Method: publishCounters */
+    /* Purpose: Publishes the counters now instead of waiting for the next */
+    /* sample, call it after the last access so readers see the final totals */
+    /* Parameters: */
+    /* Returns: void */
+    /**************************************************************/
+    public void publishCounters(){
+        if(counters == null){
+            return;
+        }
+        counters.setTotal(0, totalAccesses);
+        counters.setTotal(1, pageFaults);
+        counters.setTotal(2, removedPages);
+        counters.setGauge(0, pages.size());
+        counters.setGauge(1, maxSize);
+        counters.publishHistogram();
+    }
+
+    // callers check verbose first so quiet replays do not build the message
+    private void log(String message){
+        System.out.println(message);
+    }
+
     public void print(){
         System.out.println("    Working Set: " + pages.values() + " | Size: " + pages.size() + "/" + maxSize);
     }